@@ -0,0 +1,27 @@
+#!/bin/sh
+# Startup benchmark: times shading examples/StringType.jar, a single entry jar, so the time is dominated by JVM
+# startup & class loading up to the first entry. Compares the plain jar with bin/scalashade, which uses the AppCDS
+# archive built by 'mvn -Pcds package'. Prints the median of RUNS runs in milliseconds.
+
+BASE=$(cd "$(dirname "$0")/.." && pwd)
+RUNS=${RUNS:-11}
+OUT=$(mktemp)
+trap 'rm -f "$OUT"' EXIT
+
+median() {
+    sort -n | awk '{ a[NR] = $1 } END { print a[int((NR + 1) / 2)] }'
+}
+
+run() {
+    i=0
+    while [ $i -lt "$RUNS" ]; do
+        start=$(date +%s%N)
+        "$@" "$BASE/examples/StringType.jar" "$OUT" org.apache shaded.org.apache > /dev/null
+        end=$(date +%s%N)
+        echo $(( (end - start) / 1000000 ))
+        i=$((i + 1))
+    done | median
+}
+
+echo "java -jar:       $(run java -Xshare:auto -jar "$BASE/target/scalashade-0.1.jar") ms"
+echo "bin/scalashade:  $(run "$BASE/bin/scalashade") ms"
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade.gradle;
+
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.MapProperty;
+
+/**
+ * Project extension for configuring ScalaShade
+ * <pre>
+ * scalaShade {
+ *     relocate 'org.apache', 'shaded.org.apache'
+ *     configurations = ['runtimeClasspath']
+ * }
+ * </pre>
+ */
+public abstract class ScalaShadeExtension {
+
+    /**
+     * @return map of absolute namespace to change to the namespace to use instead
+     */
+    public abstract MapProperty<String, String> getRelocations();
+
+    /**
+     * @return names of configurations that should resolve shaded artifacts
+     */
+    public abstract ListProperty<String> getConfigurations();
+
+    /**
+     * Add a namespace relocation
+     *
+     * @param from Absolute namespace to change
+     * @param to   Absolute namespace to use instead
+     */
+    public void relocate(String from, String to) {
+        getRelocations().put(from, to);
+    }
+}
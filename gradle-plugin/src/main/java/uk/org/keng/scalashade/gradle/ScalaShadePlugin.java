@@ -0,0 +1,61 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade.gradle;
+
+import org.gradle.api.Plugin;
+import org.gradle.api.Project;
+import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.artifacts.type.ArtifactTypeDefinition;
+import org.gradle.api.attributes.Attribute;
+
+/**
+ * Registers the {@link ScalaShadeTransform} for jar and class directory artifacts. Configurations listed in the
+ * extension, or any configuration requesting the {@link #SHADED} attribute, resolve shaded artifacts.
+ */
+public class ScalaShadePlugin implements Plugin<Project> {
+
+    /**
+     * Artifact attribute marking whether @ScalaSignature annotations have been corrected
+     */
+    public static final Attribute<Boolean> SHADED = Attribute.of("uk.org.keng.scalashade.shaded", Boolean.class);
+
+    @Override
+    public void apply(final Project project) {
+        final ScalaShadeExtension extension = project.getExtensions().create("scalaShade", ScalaShadeExtension.class);
+
+        project.getDependencies().getAttributesSchema().attribute(SHADED);
+        for (String type : new String[]{ArtifactTypeDefinition.JAR_TYPE, ArtifactTypeDefinition.JVM_CLASS_DIRECTORY}) {
+            project.getDependencies().getArtifactTypes().maybeCreate(type).getAttributes().attribute(SHADED, false);
+            registerTransform(project, extension, type);
+        }
+
+        project.afterEvaluate(p -> {
+            for (String name : extension.getConfigurations().get()) {
+                Configuration configuration = p.getConfigurations().getByName(name);
+                configuration.getAttributes().attribute(SHADED, true);
+            }
+        });
+    }
+
+    private static void registerTransform(Project project, final ScalaShadeExtension extension, final String type) {
+        project.getDependencies().registerTransform(ScalaShadeTransform.class, spec -> {
+            spec.getFrom().attribute(SHADED, false).attribute(ArtifactTypeDefinition.ARTIFACT_TYPE_ATTRIBUTE, type);
+            spec.getTo().attribute(SHADED, true).attribute(ArtifactTypeDefinition.ARTIFACT_TYPE_ATTRIBUTE, type);
+            spec.parameters(parameters -> parameters.getRelocations().set(extension.getRelocations()));
+        });
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade.gradle;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.MapProperty;
+import org.gradle.api.tasks.*;
+import uk.org.keng.scalashade.ScalaShade;
+
+import java.util.Map;
+
+/**
+ * Task that corrects @ScalaSignature annotations in a jar, for example the output of a shadow/shade task.
+ * <pre>
+ * tasks.register('scalaShadeJar', ScalaShadeTask) {
+ *     inputJar = shadowJar.archiveFile
+ *     outputJar = layout.buildDirectory.file('libs/corrected.jar')
+ *     relocations.put('org.apache', 'shaded.org.apache')
+ * }
+ * </pre>
+ */
+@CacheableTask
+public abstract class ScalaShadeTask extends DefaultTask {
+
+    /**
+     * @return the jar to read
+     */
+    @InputFile
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract RegularFileProperty getInputJar();
+
+    /**
+     * @return the jar to write
+     */
+    @OutputFile
+    public abstract RegularFileProperty getOutputJar();
+
+    /**
+     * @return map of absolute namespace to change to the namespace to use instead
+     */
+    @Input
+    public abstract MapProperty<String, String> getRelocations();
+
+    @TaskAction
+    public void shade() {
+        ScalaShade shade = new ScalaShade();
+        for (Map.Entry<String, String> relocation : getRelocations().get().entrySet()) {
+            shade.relocate(relocation.getKey(), relocation.getValue());
+        }
+        shade.shadeJar(getInputJar().get().getAsFile(), getOutputJar().get().getAsFile());
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade.gradle;
+
+import org.gradle.api.artifacts.transform.*;
+import org.gradle.api.file.FileSystemLocation;
+import org.gradle.api.provider.MapProperty;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import uk.org.keng.scalashade.ScalaShade;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+
+/**
+ * Artifact transform that corrects @ScalaSignature annotations in a jar or class directory. Results are cached by
+ * Gradle keyed on the artifact contents and the relocations, and Gradle runs transforms for separate dependencies
+ * in parallel, so each transform shades on a single thread.
+ */
+@CacheableTransform
+public abstract class ScalaShadeTransform implements TransformAction<ScalaShadeTransform.Parameters> {
+
+    /**
+     * Transform parameters
+     */
+    public interface Parameters extends TransformParameters {
+        /**
+         * @return map of absolute namespace to change to the namespace to use instead
+         */
+        @Input
+        MapProperty<String, String> getRelocations();
+    }
+
+    /**
+     * @return the artifact to transform
+     */
+    @InputArtifact
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public abstract Provider<FileSystemLocation> getInputArtifact();
+
+    @Override
+    public void transform(TransformOutputs outputs) {
+        File input = getInputArtifact().get().getAsFile();
+        if (!input.exists())
+            return;
+
+        ScalaShade shade = new ScalaShade();
+        shade.setThreads(1);
+        for (Map.Entry<String, String> relocation : getParameters().getRelocations().get().entrySet()) {
+            shade.relocate(relocation.getKey(), relocation.getValue());
+        }
+
+        if (input.isDirectory()) {
+            shadeDirectory(shade, input.toPath(), outputs.dir(input.getName()).toPath());
+        } else if (input.getName().endsWith(".jar")) {
+            shade.shadeJar(input, outputs.file(input.getName()));
+        } else {
+            outputs.file(input);
+        }
+    }
+
+    /**
+     * Mirror a class directory, shading classes as they are copied
+     */
+    private static void shadeDirectory(final ScalaShade shade, final Path from, final Path to) {
+        try {
+            Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    Files.createDirectories(to.resolve(from.relativize(dir).toString()));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Path target = to.resolve(from.relativize(file).toString());
+                    if (file.getFileName().toString().endsWith(".class")) {
+                        Files.write(target, shade.shadeClass(file.toString(), Files.readAllBytes(file)));
+                    } else {
+                        Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Could not shade class directory: " + from, e);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package uk.org.keng.scalashade.gradle;
+
+import org.gradle.testkit.runner.BuildResult;
+import org.gradle.testkit.runner.GradleRunner;
+import org.gradle.testkit.runner.TaskOutcome;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.org.keng.scalashade.ScalaShade;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class ScalaShadePluginTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File project;
+    private byte[] expected;
+
+    private void setUp(String buildScript) throws IOException {
+        project = folder.getRoot();
+        File example = new File(System.getProperty("scalashade.example"));
+        Files.copy(example.toPath(), new File(project, "StringType.jar").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        write("settings.gradle", "rootProject.name = 'smoke'\n");
+        write("build.gradle", buildScript);
+        expected = new ScalaShade().relocate("org.apache", "shaded.org.apache")
+                .shadeClass("StringType", readClass(example));
+    }
+
+    private GradleRunner runner(String... arguments) {
+        return GradleRunner.create().withProjectDir(project).withPluginClasspath().withArguments(arguments);
+    }
+
+    @Test
+    public void ShadeTask() throws IOException {
+        setUp("plugins {\n" +
+                "    id 'uk.org.keng.scalashade'\n" +
+                "}\n" +
+                "tasks.register('scalaShadeJar', uk.org.keng.scalashade.gradle.ScalaShadeTask) {\n" +
+                "    inputJar = file('StringType.jar')\n" +
+                "    outputJar = layout.buildDirectory.file('corrected.jar')\n" +
+                "    relocations.put('org.apache', 'shaded.org.apache')\n" +
+                "}\n");
+
+        BuildResult result = runner("scalaShadeJar").build();
+        assertEquals(TaskOutcome.SUCCESS, result.task(":scalaShadeJar").getOutcome());
+        assertArrayEquals(expected, readClass(new File(project, "build/corrected.jar")));
+
+        // Unchanged inputs so skipped
+        result = runner("scalaShadeJar").build();
+        assertEquals(TaskOutcome.UP_TO_DATE, result.task(":scalaShadeJar").getOutcome());
+    }
+
+    @Test
+    public void ShadeTransform() throws IOException {
+        setUp("plugins {\n" +
+                "    id 'java'\n" +
+                "    id 'uk.org.keng.scalashade'\n" +
+                "}\n" +
+                "dependencies {\n" +
+                "    runtimeOnly files('StringType.jar')\n" +
+                "}\n" +
+                "scalaShade {\n" +
+                "    relocate 'org.apache', 'shaded.org.apache'\n" +
+                "    configurations = ['runtimeClasspath']\n" +
+                "}\n" +
+                "tasks.register('printClasspath') {\n" +
+                "    def classpath = configurations.runtimeClasspath\n" +
+                "    doLast {\n" +
+                "        classpath.files.each { println 'Resolved: ' + it }\n" +
+                "    }\n" +
+                "}\n");
+
+        BuildResult result = runner("printClasspath").build();
+        File shaded = null;
+        for (String line : result.getOutput().split("\n")) {
+            if (line.startsWith("Resolved: "))
+                shaded = new File(line.substring(10).trim());
+        }
+        assertTrue(shaded != null && !shaded.getParentFile().equals(project));
+        assertArrayEquals(expected, readClass(shaded));
+    }
+
+    private void write(String name, String contents) throws IOException {
+        Files.write(new File(project, name).toPath(), contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] readClass(File jar) throws IOException {
+        ZipFile zip = new ZipFile(jar);
+        try {
+            ZipEntry entry = zip.getEntry("StringType.class");
+            InputStream in = zip.getInputStream(entry);
+            try {
+                byte[] bytes = new byte[(int) entry.getSize()];
+                int read = 0;
+                while (read < bytes.length)
+                    read += in.read(bytes, read, bytes.length - read);
+                return bytes;
+            } finally {
+                in.close();
+            }
+        } finally {
+            zip.close();
+        }
+    }
+}
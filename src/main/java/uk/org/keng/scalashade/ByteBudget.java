@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+/**
+ * Limits the number of bytes of entry data held in memory at once. Callers block in {@link #acquire(long)} until
+ * enough has been released, a request larger than the whole budget is reduced to the budget so it can proceed
+ * once everything else has been released.
+ */
+class ByteBudget {
+    private final long capacity;
+    private long used = 0;
+    private long peak = 0;
+    private boolean aborted = false;
+
+    /**
+     * Construct a budget
+     *
+     * @param capacity maximum bytes that may be acquired at once
+     */
+    ByteBudget(long capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Acquire bytes from the budget, waiting until they are available
+     *
+     * @param bytes the number of bytes wanted
+     * @return the number of bytes acquired, pass this to {@link #release(long)}
+     * @throws CtxException if interrupted or the budget is aborted
+     */
+    synchronized long acquire(long bytes) {
+        bytes = Math.min(bytes, capacity);
+        try {
+            while (!aborted && used + bytes > capacity) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CtxException("Interrupted while waiting for memory budget", e);
+        }
+        if (aborted)
+            throw new CtxException("Processing aborted");
+        used += bytes;
+        peak = Math.max(peak, used);
+        return bytes;
+    }
+
+    /**
+     * Change the bytes held without waiting, this may take the budget over capacity temporarily
+     *
+     * @param from the number of bytes currently held
+     * @param to   the number of bytes now wanted
+     * @return the number of bytes now held, pass this to {@link #release(long)}
+     */
+    synchronized long exchange(long from, long to) {
+        to = Math.min(to, capacity);
+        used += to - from;
+        peak = Math.max(peak, used);
+        if (to < from)
+            notifyAll();
+        return to;
+    }
+
+    /**
+     * Return bytes to the budget
+     *
+     * @param bytes the number of bytes previously acquired
+     */
+    synchronized void release(long bytes) {
+        used -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * Wake any waiters so they fail, used when the pipeline stops on an error
+     */
+    synchronized void abort() {
+        aborted = true;
+        notifyAll();
+    }
+
+    /**
+     * @return the most bytes held at once
+     */
+    synchronized long peak() {
+        return peak;
+    }
+}
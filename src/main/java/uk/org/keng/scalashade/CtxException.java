@@ -19,7 +19,7 @@ package uk.org.keng.scalashade;
 /**
  * Simple RuntimeException wrapper for adding context messages to an exception.
  */
-class CtxException extends RuntimeException {
+public class CtxException extends RuntimeException {
     public CtxException(String message) {
         super(message);
     }
@@ -16,6 +16,8 @@
 
 package uk.org.keng.scalashade;
 
+import java.util.Arrays;
+
 /**
  * This encoding/decoding is based on http://lampwww.epfl.ch/~dubochet/new_pickle.pdf. It is used in the ScalaSignature
  * class annotation to encode type information. An implementation of the encoding can be found in
@@ -61,25 +63,40 @@ class Encoding {
      * @return encoding of raw
      */
     public static String encode(byte[] raw) {
+        int encodedLength = encodeLength(raw.length);
+        return encode(raw, raw.length, new byte[encodedLength], new char[encodedLength * 2]);
+    }
+
+    /**
+     * Encode bytes into a string using the scheme, using caller provided working buffers so they can be reused.
+     *
+     * @param raw    input bytes
+     * @param length number of input bytes to encode
+     * @param groups working buffer, must be at least encodeLength(length) in size
+     * @param chars  working buffer, must be at least twice encodeLength(length) in size
+     * @return encoding of raw
+     */
+    public static String encode(byte[] raw, int length, byte[] groups, char[] chars) {
 
-        // Convert to 7-bit
-        byte[] encoded = new byte[encodeLength(raw.length)];
-        for (int i = 0; i < raw.length; i++) {
-            encodeByte(encoded, i, raw[i]);
+        // Convert to 7-bit, partial bytes are merged with existing content so must start clear
+        int encodedLength = encodeLength(length);
+        Arrays.fill(groups, 0, encodedLength, (byte) 0);
+        for (int i = 0; i < length; i++) {
+            encodeByte(groups, i, raw[i]);
         }
 
         // Encode that in String
-        StringBuilder sb = new StringBuilder();
-        for (byte b : encoded) {
-            char c = (char) ((b + 1) & 0x7F);
+        int charCount = 0;
+        for (int i = 0; i < encodedLength; i++) {
+            char c = (char) ((groups[i] + 1) & 0x7F);
             if (c != 0) {
-                sb.append(c);
+                chars[charCount++] = c;
             } else {
-                sb.append((char) 0xc0);
-                sb.append((char) 0x80);
+                chars[charCount++] = (char) 0xc0;
+                chars[charCount++] = (char) 0x80;
             }
         }
-        return sb.toString();
+        return new String(chars, 0, charCount);
     }
 
     /**
@@ -89,30 +106,45 @@ class Encoding {
      * @return the raw bytes
      */
     public static byte[] decode(String encoded) {
+        byte[] buffer = new byte[encoded.length()];
+        int length = decode(encoded, buffer);
+        if (length == -1)
+            return null;
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * Decode a string back to a byte representation in a caller provided buffer so it can be reused. The
+     * decoding is performed in place, each decoded byte only depends on encoded bytes at or after its position.
+     *
+     * @param encoded the encoded bytes
+     * @param buffer  receives the raw bytes, must be at least encoded.length() in size
+     * @return the number of raw bytes, or -1 if the string is not a valid encoding
+     */
+    public static int decode(String encoded, byte[] buffer) {
 
         // Convert to byte array while validating and removing outer coding
-        byte[] input = new byte[encoded.length()];
         int byteIndex = 0;
         for (int charIndex = 0; charIndex < encoded.length(); charIndex++) {
             char c = encoded.charAt(charIndex);
             if (c < 128) {
-                input[byteIndex++] = (byte) ((c - 1) & 0x7F);
+                buffer[byteIndex++] = (byte) ((c - 1) & 0x7F);
             } else {
                 if (c == 0xc0 && charIndex + 1 < encoded.length() && encoded.charAt(charIndex + 1) == 0x80) {
-                    input[byteIndex++] = 0;
+                    buffer[byteIndex++] = 0;
                     charIndex++;
                 } else {
-                    return null;
+                    return -1;
                 }
             }
         }
 
         // Convert back to 8-bit
-        byte[] output = new byte[decodeLength(byteIndex)];
-        for (int i = 0; i < output.length; i++) {
-            output[i] = decodeByte(input, i);
+        int length = decodeLength(byteIndex);
+        for (int i = 0; i < length; i++) {
+            buffer[i] = decodeByte(buffer, i);
         }
-        return output;
+        return length;
     }
 
     /**
@@ -123,7 +155,7 @@ class Encoding {
      * @param inputLength how many bytes are to be encoded
      * @return size of resulting encoding
      */
-    private static int encodeLength(int inputLength) {
+    static int encodeLength(int inputLength) {
         int rem = (inputLength % 7);
         return ((inputLength / 7) * 8) + (rem > 0 ? rem + 1 : 0);
     }
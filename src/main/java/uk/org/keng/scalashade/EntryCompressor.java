@@ -0,0 +1,234 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Compresses entry data ready for a {@link ZipWriter}. This is thread safe, each call borrows a Deflater from a
+ * pool so they are re-used across entries rather than being created and destroyed for each one.
+ */
+class EntryCompressor {
+
+    /**
+     * Value for {@link #forOption(String)} that selects stored (uncompressed) output
+     */
+    static final String STORED = "stored";
+
+    private final int method;
+    private final int level;
+    private long memoryLimit = 16 * 1024 * 1024;
+    private OffHeapArena arena = null;
+    private final ConcurrentLinkedQueue<Deflater> pool = new ConcurrentLinkedQueue<Deflater>();
+    private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[64 * 1024];
+        }
+    };
+    private final ThreadLocal<byte[]> inputScratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[64 * 1024];
+        }
+    };
+
+    /**
+     * Construct a compressor
+     *
+     * @param method ZipEntry.STORED or ZipEntry.DEFLATED
+     * @param level  the Deflater level to use, ignored for ZipEntry.STORED
+     */
+    EntryCompressor(int method, int level) {
+        this.method = method;
+        this.level = level;
+    }
+
+    /**
+     * Set how much compressed output for an entry is held in memory before spilling to disk
+     *
+     * @param memoryLimit size in bytes
+     */
+    void setMemoryLimit(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Set an arena to hold compressed output in, by default it is held on the heap
+     *
+     * @param arena the arena, or null to use the heap
+     */
+    void setArena(OffHeapArena arena) {
+        this.arena = arena;
+    }
+
+    /**
+     * Create a compressor from a command line option value
+     *
+     * @param option either "stored" or a deflate level 0-9, null for the default level
+     * @return the compressor
+     * @throws CtxException if the option is not recognised
+     */
+    static EntryCompressor forOption(String option) {
+        if (option == null)
+            return new EntryCompressor(ZipEntry.DEFLATED, Deflater.DEFAULT_COMPRESSION);
+        if (option.equalsIgnoreCase(STORED))
+            return new EntryCompressor(ZipEntry.STORED, 0);
+        try {
+            int level = Integer.parseInt(option);
+            if (level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION)
+                return new EntryCompressor(ZipEntry.DEFLATED, level);
+        } catch (NumberFormatException e) {
+            // Fall through
+        }
+        throw new CtxException("Compression must be 'stored' or a level 0-9, not: " + option);
+    }
+
+    /**
+     * @return the compression as an option value, see {@link #forOption(String)}, with -1 for the default level
+     */
+    String asOption() {
+        return method == ZipEntry.STORED ? STORED : Integer.toString(level);
+    }
+
+    /**
+     * Test if an entry already stored with a method can be copied as it is rather than being compressed again
+     *
+     * @param entryMethod ZipEntry.STORED or ZipEntry.DEFLATED
+     * @return true unless this compressor stores entries and the entry is deflated
+     */
+    boolean canCopy(int entryMethod) {
+        return method == ZipEntry.DEFLATED || entryMethod == ZipEntry.STORED;
+    }
+
+    /**
+     * Compress entry data. Entries that do not shrink when deflated are stored instead. The compressor takes
+     * ownership of the data, it is either returned in the entry or released.
+     *
+     * @param name   the entry name
+     * @param time   modification time in Java millis
+     * @param data   the uncompressed data
+     * @param stored if true the entry is stored regardless of the compression level
+     * @return an entry ready for writing
+     * @throws CtxException
+     */
+    ZipWriter.Entry compress(String name, long time, SpillBuffer data, boolean stored) {
+        try {
+            if (method == ZipEntry.STORED || stored || data.size() == 0)
+                return new ZipWriter.Entry(name, time, ZipEntry.STORED, crc(data), data.size(), data);
+
+            Deflater deflater = pool.poll();
+            if (deflater == null) {
+                deflater = new Deflater(level, true);
+            }
+            SpillBuffer out = new SpillBuffer(memoryLimit, arena);
+            try {
+                CRC32 crc = new CRC32();
+                byte[] buffer = scratch.get();
+                if (data.hasArray()) {
+                    crc.update(data.array(), 0, (int) data.size());
+                    deflater.setInput(data.array(), 0, (int) data.size());
+                    deflater.finish();
+                    drain(deflater, buffer, out);
+                } else {
+                    // Spilled or off-heap, so feed through a chunk at a time
+                    byte[] input = inputScratch.get();
+                    InputStream in = data.openStream();
+                    try {
+                        int bytesRead;
+                        while ((bytesRead = in.read(input)) != -1) {
+                            crc.update(input, 0, bytesRead);
+                            deflater.setInput(input, 0, bytesRead);
+                            drain(deflater, buffer, out);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    deflater.finish();
+                    drain(deflater, buffer, out);
+                }
+                out.close();
+
+                if (out.size() >= data.size()) {
+                    out.release();
+                    return new ZipWriter.Entry(name, time, ZipEntry.STORED, crc.getValue(), data.size(), data);
+                }
+                data.release();
+                return new ZipWriter.Entry(name, time, ZipEntry.DEFLATED, crc.getValue(), data.size(), out);
+            } catch (IOException e) {
+                out.release();
+                throw e;
+            } finally {
+                deflater.reset();
+                pool.offer(deflater);
+            }
+        } catch (IOException e) {
+            data.release();
+            throw new CtxException("Could not compress entry: " + name, e);
+        }
+    }
+
+    /**
+     * Pull available output from a Deflater
+     */
+    private static void drain(Deflater deflater, byte[] buffer, OutputStream out) throws IOException {
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            if (n == 0 && deflater.needsInput())
+                break;
+            out.write(buffer, 0, n);
+        }
+    }
+
+    /**
+     * Calculate CRC-32 of some data
+     */
+    private long crc(SpillBuffer data) throws IOException {
+        CRC32 crc = new CRC32();
+        if (data.hasArray()) {
+            crc.update(data.array(), 0, (int) data.size());
+        } else {
+            InputStream in = data.openStream();
+            try {
+                byte[] buffer = inputScratch.get();
+                int bytesRead;
+                while ((bytesRead = in.read(buffer)) != -1) {
+                    crc.update(buffer, 0, bytesRead);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Release the pooled Deflaters
+     */
+    void close() {
+        Deflater deflater;
+        while ((deflater = pool.poll()) != null) {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which entries are written when merging several jars into one. Called on the writer thread in the order
+ * entries were read, so the first copy of an entry is the one kept.
+ * <p/>
+ * Entries with the same name & content are written once. Entries with the same name but different content are
+ * handled according to the {@link ConflictPolicy}, except under META-INF/ where licence & notice files commonly
+ * differ so the first is kept. Service files are merged, jar signature files are dropped as the merged jar can't
+ * satisfy them. Merged service files list each provider once, without comments. Directory entries are added for
+ * relocated entries whose new parent directories have none.
+ */
+class EntryMerger {
+
+    /**
+     * How to handle entries with the same name but different content
+     */
+    enum ConflictPolicy {
+        FIRST, WARN, FAIL;
+
+        /**
+         * Get policy from command line option value
+         *
+         * @param option the option value, 'first', 'warn' or 'fail', null for warn
+         * @return the policy
+         * @throws CtxException if the option is not valid
+         */
+        static ConflictPolicy forOption(String option) {
+            if (option == null)
+                return WARN;
+            for (ConflictPolicy policy : values()) {
+                if (policy.name().equalsIgnoreCase(option))
+                    return policy;
+            }
+            throw new CtxException("Conflict policy must be 'first', 'warn' or 'fail', not: " + option);
+        }
+    }
+
+    private static final byte[] DIRECTORY_DIGEST = new byte[0];
+
+    private final ConflictPolicy policy;
+    private final Map<String, byte[]> digests = new HashMap<String, byte[]>();
+    private final Map<String, Set<String>> services = new LinkedHashMap<String, Set<String>>();
+    private int duplicates = 0;
+    private int conflicts = 0;
+
+    EntryMerger(ConflictPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Decide if an entry should be written
+     *
+     * @param name     the entry name in the new jar
+     * @param source   name of the jar it came from, just for reporting
+     * @param digest   SHA-256 of the entry content
+     * @param services service file content to merge, null if not a service file
+     * @return true if the entry should be written
+     * @throws CtxException if there is a conflict and the policy is to fail
+     */
+    boolean accept(String name, String source, byte[] digest, String services) {
+        if (isSignatureFile(name))
+            return false;
+
+        if (services != null) {
+            Set<String> lines = this.services.get(name);
+            if (lines == null) {
+                lines = new LinkedHashSet<String>();
+                this.services.put(name, lines);
+            }
+            for (String line : services.split("\n")) {
+                int comment = line.indexOf('#');
+                String provider = (comment != -1 ? line.substring(0, comment) : line).trim();
+                if (!provider.isEmpty())
+                    lines.add(provider);
+            }
+            return false;
+        }
+
+        byte[] existing = digests.get(name);
+        if (existing == null) {
+            digests.put(name, digest);
+            return true;
+        }
+        if (Arrays.equals(existing, digest) || name.endsWith("/")) {
+            duplicates++;
+            return false;
+        }
+
+        conflicts++;
+        if (name.startsWith("META-INF/") || policy == ConflictPolicy.FIRST)
+            return false;
+        if (policy == ConflictPolicy.FAIL)
+            throw new CtxException("Duplicate entry with different content: " + name + " in " + source);
+        System.err.println("Duplicate entry with different content: " + name + " in " + source +
+                ", keeping first copy");
+        return false;
+    }
+
+    /**
+     * Find the parent directories of an entry that have not been written, they are then treated as written so a
+     * directory entry for them found later is dropped as a duplicate
+     *
+     * @param name the entry name in the new jar
+     * @return the missing directory names, outermost first
+     */
+    List<String> missingDirectories(String name) {
+        List<String> missing = new ArrayList<String>();
+        int slash = name.indexOf('/');
+        while (slash != -1 && slash < name.length() - 1) {
+            String directory = name.substring(0, slash + 1);
+            if (!digests.containsKey(directory)) {
+                digests.put(directory, DIRECTORY_DIGEST);
+                missing.add(directory);
+            }
+            slash = name.indexOf('/', slash + 1);
+        }
+        return missing;
+    }
+
+    /**
+     * @return merged service files, name to content
+     */
+    Map<String, byte[]> mergedServices() {
+        Map<String, byte[]> merged = new LinkedHashMap<String, byte[]>();
+        for (Map.Entry<String, Set<String>> service : services.entrySet()) {
+            StringBuilder sb = new StringBuilder();
+            for (String line : service.getValue())
+                sb.append(line).append('\n');
+            merged.put(service.getKey(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return merged;
+    }
+
+    /**
+     * @return how entries with different content are handled
+     */
+    ConflictPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return number of duplicate entries with the same content that were skipped
+     */
+    int getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return number of duplicate entries with different content
+     */
+    int getConflicts() {
+        return conflicts;
+    }
+
+    private static boolean isSignatureFile(String name) {
+        if (!name.startsWith("META-INF/") || name.indexOf('/', 9) != -1)
+            return false;
+        String upper = name.toUpperCase();
+        return upper.endsWith(".SF") || upper.endsWith(".DSA") || upper.endsWith(".RSA") || upper.endsWith(".EC");
+    }
+}
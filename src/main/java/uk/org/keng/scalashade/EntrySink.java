@@ -0,0 +1,263 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Where {@link JarShade} writes entries to. Entries are written in order from a single thread, the sink does not
+ * take ownership of the entry data, it is released after each write.
+ */
+interface EntrySink {
+
+    /**
+     * @return name of the output, for error reporting
+     */
+    String path();
+
+    /**
+     * @return true if entries should be compressed before being written, otherwise they arrive stored
+     */
+    boolean compressed();
+
+    /**
+     * Set the comment for the output as a whole, ignored by sinks that can't hold one
+     *
+     * @param comment the comment, may be null
+     */
+    void setComment(String comment);
+
+    /**
+     * Write an entry
+     *
+     * @param entry the entry
+     * @throws CtxException
+     */
+    void write(ZipWriter.Entry entry);
+
+    /**
+     * Complete the output
+     *
+     * @throws CtxException
+     */
+    void close();
+
+    /**
+     * Jar written to a stream, such as a file or stdout. The stream is closed on completion.
+     */
+    class Zip implements EntrySink {
+        private final ZipWriter writer;
+        private final String path;
+
+        /**
+         * @param out  stream to write the jar to, should be buffered
+         * @param path name of the output, for error reporting
+         */
+        Zip(OutputStream out, String path) {
+            this.writer = new ZipWriter(out, path);
+            this.path = path;
+        }
+
+        @Override
+        public String path() {
+            return path;
+        }
+
+        @Override
+        public boolean compressed() {
+            return true;
+        }
+
+        @Override
+        public void setComment(String comment) {
+            writer.setComment(comment);
+        }
+
+        @Override
+        public void write(ZipWriter.Entry entry) {
+            writer.write(entry);
+        }
+
+        @Override
+        public void close() {
+            writer.close();
+        }
+    }
+
+    /**
+     * Tree of files, entry names are used as paths relative to the root
+     */
+    class Directory implements EntrySink {
+        private final Path root;
+
+        /**
+         * @param dir root of the tree, created if needed
+         */
+        Directory(File dir) {
+            root = dir.toPath().toAbsolutePath().normalize();
+        }
+
+        @Override
+        public String path() {
+            return root.toString();
+        }
+
+        @Override
+        public boolean compressed() {
+            return false;
+        }
+
+        @Override
+        public void setComment(String comment) {
+        }
+
+        @Override
+        public void write(ZipWriter.Entry entry) {
+            Path path = root.resolve(entry.name).normalize();
+            if (!path.startsWith(root))
+                throw new CtxException("Entry would be written outside of the output directory: " + entry.name);
+            try {
+                if (entry.name.endsWith("/")) {
+                    Files.createDirectories(path);
+                    return;
+                }
+                Files.createDirectories(path.getParent());
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(path.toFile()), 64 * 1024);
+                try {
+                    entry.data.writeTo(out);
+                } finally {
+                    out.close();
+                }
+                //noinspection ResultOfMethodCallIgnored
+                path.toFile().setLastModified(entry.time);
+            } catch (IOException e) {
+                throw new CtxException("Could not write file: " + path, e);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * The contents of a single entry written to a stream, for shading a lone class. The stream is closed on
+     * completion.
+     */
+    class SingleFile implements EntrySink {
+        private final OutputStream out;
+        private final String path;
+        private boolean written = false;
+
+        /**
+         * @param out  stream to write to
+         * @param path name of the output, for error reporting
+         */
+        SingleFile(OutputStream out, String path) {
+            this.out = out;
+            this.path = path;
+        }
+
+        @Override
+        public String path() {
+            return path;
+        }
+
+        @Override
+        public boolean compressed() {
+            return false;
+        }
+
+        @Override
+        public void setComment(String comment) {
+        }
+
+        @Override
+        public void write(ZipWriter.Entry entry) {
+            if (written)
+                throw new CtxException("Only one entry can be written to: " + path);
+            written = true;
+            try {
+                entry.data.writeTo(out);
+            } catch (IOException e) {
+                throw new CtxException("Could not write file: " + path, e);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw new CtxException("Could not write file: " + path, e);
+            }
+        }
+    }
+
+    /**
+     * Entries collected in memory
+     */
+    class Memory implements EntrySink {
+        private final Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+
+        @Override
+        public String path() {
+            return "<memory>";
+        }
+
+        @Override
+        public boolean compressed() {
+            return false;
+        }
+
+        @Override
+        public void setComment(String comment) {
+        }
+
+        @Override
+        public void write(ZipWriter.Entry entry) {
+            // Keep the array when it is exactly the data, releasing the buffer does not reuse it
+            if (entry.data.hasArray() && entry.data.array().length == entry.data.size()) {
+                entries.put(entry.name, entry.data.array());
+                return;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(entry.size, Integer.MAX_VALUE));
+            try {
+                entry.data.writeTo(bytes);
+            } catch (IOException e) {
+                throw new CtxException("Could not read entry data: " + entry.name, e);
+            }
+            entries.put(entry.name, bytes.toByteArray());
+        }
+
+        @Override
+        public void close() {
+        }
+
+        /**
+         * @return map of entry name to contents, in the order written
+         */
+        Map<String, byte[]> entries() {
+            return Collections.unmodifiableMap(entries);
+        }
+    }
+}
@@ -0,0 +1,544 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Where {@link JarShade} reads entries from. Entries are described with a ZipEntry whatever the source so the
+ * processing does not depend on where they came from, only the name is required, the other fields are carried
+ * through to the output where the source has them.
+ * <p/>
+ * Entries are read in order on a single thread, {@link #read} is only called for the entry last returned by
+ * {@link #nextEntry()}.
+ */
+interface EntrySource {
+
+    /**
+     * @return name of the source, for error reporting
+     */
+    String path();
+
+    /**
+     * Move to the next entry
+     *
+     * @return the next entry or null if there are no more
+     * @throws CtxException
+     */
+    ZipEntry nextEntry();
+
+    /**
+     * Read the contents of the current entry
+     *
+     * @param entry       the entry last returned by {@link #nextEntry()}
+     * @param memoryLimit bytes to hold in memory before spilling to disk
+     * @param arena       arena to hold the contents in, or null to use the heap
+     * @return the entry contents, empty for directories
+     * @throws CtxException
+     */
+    SpillBuffer read(ZipEntry entry, long memoryLimit, OffHeapArena arena);
+
+    /**
+     * Read the contents of the current entry as they are stored, without inflating them, so an entry that is not
+     * being changed can be copied as it is
+     *
+     * @param entry       the entry last returned by {@link #nextEntry()}
+     * @param memoryLimit bytes to hold in memory before spilling to disk
+     * @param arena       arena to hold the contents in, or null to use the heap
+     * @return the compressed contents, or null if the source can't provide them for this entry
+     * @throws CtxException
+     */
+    SpillBuffer readCompressed(ZipEntry entry, long memoryLimit, OffHeapArena arena);
+
+    /**
+     * Check the filter against the name of the current entry, using the name as stored where the source has it
+     * rather than encoding it again
+     *
+     * @param filter the filter
+     * @param entry  the entry last returned by {@link #nextEntry()}
+     * @return true if the filter accepts the entry
+     */
+    boolean accepts(PathFilter filter, ZipEntry entry);
+
+    /**
+     * @return comment for the source as a whole, or null
+     */
+    String comment();
+
+    /**
+     * Release any resources held, errors are ignored
+     */
+    void close();
+
+    /**
+     * Jar on disk, read with random access
+     */
+    class Zip implements EntrySource {
+        private final File file;
+        private final String path;
+        private final JarFile jarFile;
+        private final Enumeration<JarEntry> entries;
+        private FileChannel channel = null;
+        private ZipDirectory.Headers headers = null;
+        private long headerIndex = -1;
+        private long entryIndex = -1;
+        private boolean noHeaders = false;
+
+        /**
+         * @param jar the jar file
+         * @throws CtxException if it can't be opened
+         */
+        Zip(File jar) {
+            try {
+                file = jar;
+                path = jar.getAbsolutePath();
+                // Not verifying signatures, they can't survive shading and checking them costs a digest per entry
+                jarFile = new JarFile(jar, false);
+                entries = jarFile.entries();
+            } catch (IOException e) {
+                throw new CtxException("Could not open jar for reading: " + jar, e);
+            }
+        }
+
+        @Override
+        public String path() {
+            return path;
+        }
+
+        /**
+         * @return the jar file
+         */
+        File file() {
+            return file;
+        }
+
+        /**
+         * @return the open jar, for reading its central directory
+         */
+        JarFile jarFile() {
+            return jarFile;
+        }
+
+        @Override
+        public ZipEntry nextEntry() {
+            if (!entries.hasMoreElements())
+                return null;
+            entryIndex++;
+            return entries.nextElement();
+        }
+
+        /**
+         * JarFile returns entries in central directory order, so the matching header is found by reading the
+         * directory alongside rather than holding all of it. Anything unexpected, such as a directory whose offsets
+         * don't allow for data before the zip, just stops the headers being used.
+         *
+         * @param entry the entry last returned by {@link #nextEntry()}
+         * @return the central header of the entry, or null if it is not available
+         */
+        private ZipDirectory.Headers header(ZipEntry entry) {
+            if (noHeaders)
+                return null;
+            try {
+                if (headers == null) {
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    headers = ZipDirectory.read(channel, path).headers(channel);
+                }
+                while (headerIndex < entryIndex) {
+                    if (!headers.next()) {
+                        noHeaders = true;
+                        return null;
+                    }
+                    headerIndex++;
+                }
+                if (headers.crc != entry.getCrc() || headers.compressedSize != entry.getCompressedSize() ||
+                        headers.size != entry.getSize()) {
+                    noHeaders = true;
+                    return null;
+                }
+                return headers;
+            } catch (IOException | CtxException e) {
+                noHeaders = true;
+                return null;
+            }
+        }
+
+        @Override
+        public SpillBuffer read(ZipEntry entry, long memoryLimit, OffHeapArena arena) {
+            if (entry.isDirectory())
+                return new SpillBuffer(new byte[0]);
+            try {
+                InputStream in = jarFile.getInputStream(entry);
+                try {
+                    return SpillBuffer.read(in, memoryLimit, entry.getSize(), arena);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                throw new CtxException("Could not read entry for " + entry.getName() + " in: " + path, e);
+            }
+        }
+
+        @Override
+        public SpillBuffer readCompressed(ZipEntry entry, long memoryLimit, OffHeapArena arena) {
+            if (entry.isDirectory() || entry.getCompressedSize() < 0)
+                return null;
+            // The local header offsets are only in the central directory, which JarFile does not expose
+            ZipDirectory.Headers header = header(entry);
+            if (header == null)
+                return null;
+            try {
+                long position = ZipDirectory.dataOffset(channel, header.localOffset);
+                if (position < 0)
+                    return null;
+                long remaining = entry.getCompressedSize();
+                SpillBuffer spill = arena != null ? new SpillBuffer(memoryLimit, arena) :
+                        new SpillBuffer(memoryLimit, Math.min(remaining, memoryLimit));
+                try {
+                    ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+                    while (remaining > 0) {
+                        ((Buffer) chunk).clear();
+                        ((Buffer) chunk).limit((int) Math.min(chunk.capacity(), remaining));
+                        int read = channel.read(chunk, position);
+                        if (read == -1)
+                            throw new IOException("Unexpected end of file");
+                        spill.write(chunk.array(), 0, read);
+                        position += read;
+                        remaining -= read;
+                    }
+                    spill.close();
+                } catch (IOException e) {
+                    spill.release();
+                    throw e;
+                }
+                return spill;
+            } catch (IOException e) {
+                throw new CtxException("Could not read entry for " + entry.getName() + " in: " + path, e);
+            }
+        }
+
+        @Override
+        public boolean accepts(PathFilter filter, ZipEntry entry) {
+            if (filter.acceptsAll())
+                return true;
+            ZipDirectory.Headers header = header(entry);
+            return header != null ? filter.accepts(header.name, 0, header.nameLength) :
+                    filter.accepts(entry.getName());
+        }
+
+        @Override
+        public String comment() {
+            return jarFile.getComment();
+        }
+
+        @Override
+        public void close() {
+            try {
+                jarFile.close();
+            } catch (IOException e) {
+                // Ignore, only read from
+            }
+            try {
+                if (channel != null)
+                    channel.close();
+            } catch (IOException e) {
+                // Ignore, only read from
+            }
+        }
+    }
+
+    /**
+     * Stream of jar data such as stdin or a nested jar, the stream is not closed
+     */
+    class ZipStream implements EntrySource {
+        private final String path;
+        private final ZipInputStream stream;
+
+        /**
+         * @param in   stream of jar data
+         * @param path name of the stream, for error reporting
+         */
+        ZipStream(InputStream in, String path) {
+            this.path = path;
+            this.stream = new ZipInputStream(in);
+        }
+
+        @Override
+        public String path() {
+            return path;
+        }
+
+        @Override
+        public ZipEntry nextEntry() {
+            try {
+                return stream.getNextEntry();
+            } catch (IOException e) {
+                throw new CtxException("Could not read next entry in: " + path, e);
+            }
+        }
+
+        @Override
+        public SpillBuffer read(ZipEntry entry, long memoryLimit, OffHeapArena arena) {
+            if (entry.isDirectory())
+                return new SpillBuffer(new byte[0]);
+            try {
+                return SpillBuffer.read(stream, memoryLimit, entry.getSize(), arena);
+            } catch (IOException e) {
+                throw new CtxException("Could not read entry for " + entry.getName() + " in: " + path, e);
+            }
+        }
+
+        @Override
+        public SpillBuffer readCompressed(ZipEntry entry, long memoryLimit, OffHeapArena arena) {
+            return null;
+        }
+
+        @Override
+        public boolean accepts(PathFilter filter, ZipEntry entry) {
+            return filter.accepts(entry.getName());
+        }
+
+        @Override
+        public String comment() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Tree of files, entries are named by their path relative to the root with '/' separators and ordered by name
+     */
+    class Directory implements EntrySource {
+        private final Path root;
+        private final Iterator<Path> paths;
+
+        /**
+         * @param dir root of the tree
+         * @throws CtxException if it can't be listed
+         */
+        Directory(File dir) {
+            root = dir.toPath();
+            List<Path> found = new ArrayList<Path>();
+            try {
+                Stream<Path> walk = Files.walk(root);
+                try {
+                    Iterator<Path> it = walk.iterator();
+                    while (it.hasNext()) {
+                        Path path = it.next();
+                        if (!path.equals(root))
+                            found.add(path);
+                    }
+                } finally {
+                    walk.close();
+                }
+            } catch (IOException | UncheckedIOException e) {
+                throw new CtxException("Could not list directory: " + dir, e instanceof IOException ?
+                        (IOException) e : ((UncheckedIOException) e).getCause());
+            }
+            Collections.sort(found);
+            paths = found.iterator();
+        }
+
+        @Override
+        public String path() {
+            return root.toString();
+        }
+
+        @Override
+        public ZipEntry nextEntry() {
+            if (!paths.hasNext())
+                return null;
+            Path path = paths.next();
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                String name = root.relativize(path).toString().replace(File.separatorChar, '/');
+                ZipEntry entry = new ZipEntry(attrs.isDirectory() ? name + "/" : name);
+                entry.setTime(attrs.lastModifiedTime().toMillis());
+                if (!attrs.isDirectory())
+                    entry.setSize(attrs.size());
+                return entry;
+            } catch (IOException e) {
+                throw new CtxException("Could not read file attributes: " + path, e);
+            }
+        }
+
+        @Override
+        public SpillBuffer read(ZipEntry entry, long memoryLimit, OffHeapArena arena) {
+            if (entry.isDirectory())
+                return new SpillBuffer(new byte[0]);
+            File file = root.resolve(entry.getName()).toFile();
+            try {
+                InputStream in = new FileInputStream(file);
+                try {
+                    return SpillBuffer.read(in, memoryLimit, entry.getSize(), arena);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                throw new CtxException("Could not read file: " + file, e);
+            }
+        }
+
+        @Override
+        public SpillBuffer readCompressed(ZipEntry entry, long memoryLimit, OffHeapArena arena) {
+            return null;
+        }
+
+        @Override
+        public boolean accepts(PathFilter filter, ZipEntry entry) {
+            return filter.accepts(entry.getName());
+        }
+
+        @Override
+        public String comment() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * A single class file, as one entry named for the class. The bytes are already on the heap so are used as they
+     * are rather than being copied to an arena.
+     */
+    class SingleClass implements EntrySource {
+        private final String path;
+        private final byte[] bytes;
+        private boolean done = false;
+
+        /**
+         * @param path  name of the class, for error reporting & logging
+         * @param bytes the class byte code
+         */
+        SingleClass(String path, byte[] bytes) {
+            this.path = path;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String path() {
+            return path;
+        }
+
+        @Override
+        public ZipEntry nextEntry() {
+            if (done)
+                return null;
+            done = true;
+            // Class files are recognised by name so make sure it has the right one
+            ZipEntry entry = new ZipEntry(path.endsWith(".class") ? path : path + ".class");
+            entry.setSize(bytes.length);
+            return entry;
+        }
+
+        @Override
+        public SpillBuffer read(ZipEntry entry, long memoryLimit, OffHeapArena arena) {
+            return new SpillBuffer(bytes);
+        }
+
+        @Override
+        public SpillBuffer readCompressed(ZipEntry entry, long memoryLimit, OffHeapArena arena) {
+            return null;
+        }
+
+        @Override
+        public boolean accepts(PathFilter filter, ZipEntry entry) {
+            return filter.accepts(entry.getName());
+        }
+
+        @Override
+        public String comment() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Entries held in memory, names ending in '/' are directories
+     */
+    class Memory implements EntrySource {
+        private final Iterator<Map.Entry<String, byte[]>> entries;
+        private byte[] current = null;
+
+        /**
+         * @param entries map of entry name to contents, read in the map's order, the arrays are not copied
+         */
+        Memory(Map<String, byte[]> entries) {
+            this.entries = entries.entrySet().iterator();
+        }
+
+        @Override
+        public String path() {
+            return "<memory>";
+        }
+
+        @Override
+        public ZipEntry nextEntry() {
+            if (!entries.hasNext())
+                return null;
+            Map.Entry<String, byte[]> next = entries.next();
+            current = next.getValue();
+            ZipEntry entry = new ZipEntry(next.getKey());
+            entry.setSize(current.length);
+            return entry;
+        }
+
+        @Override
+        public SpillBuffer read(ZipEntry entry, long memoryLimit, OffHeapArena arena) {
+            return new SpillBuffer(entry.isDirectory() ? new byte[0] : current);
+        }
+
+        @Override
+        public SpillBuffer readCompressed(ZipEntry entry, long memoryLimit, OffHeapArena arena) {
+            return null;
+        }
+
+        @Override
+        public boolean accepts(PathFilter filter, ZipEntry entry) {
+            return filter.accepts(entry.getName());
+        }
+
+        @Override
+        public String comment() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
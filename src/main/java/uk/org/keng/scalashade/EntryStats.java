@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+/**
+ * Per-entry measurements collected while shading, these are recorded as an {@link EntryEvent} when JFR is
+ * recording and used for reporting slow entries.
+ */
+class EntryStats {
+    String jar;
+    String name;
+    private long start;
+    private EntryEvent event;
+
+    long uncompressedSize;
+    long compressedSize;
+    boolean hasSignature;
+    int signatureEntries;
+    int signatureSize;
+    int replacements;
+    long readTime;
+    long decodeTime;
+    long parseTime;
+    long replaceTime;
+    long encodeTime;
+    long compressTime;
+    long totalTime;
+
+    /**
+     * Start measuring an entry, clearing any previous measurements so the stats object can be reused
+     *
+     * @param jar  name of the jar containing the entry
+     * @param name the entry name
+     * @return this
+     */
+    EntryStats begin(String jar, String name) {
+        this.jar = jar;
+        this.name = name;
+        uncompressedSize = compressedSize = 0;
+        hasSignature = false;
+        signatureEntries = signatureSize = replacements = 0;
+        readTime = decodeTime = parseTime = replaceTime = encodeTime = compressTime = totalTime = 0;
+        event = null;
+        if (ShadeEvents.recording()) {
+            EntryEvent e = new EntryEvent();
+            if (e.isEnabled()) {
+                e.begin();
+                event = e;
+            }
+        }
+        start = System.nanoTime();
+        return this;
+    }
+
+    /**
+     * Finish measuring the entry, recording an event if JFR wants it
+     *
+     * @return the total time taken in nanos
+     */
+    long end() {
+        totalTime = System.nanoTime() - start;
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.jar = jar;
+                event.name = name;
+                event.uncompressedSize = uncompressedSize;
+                event.compressedSize = compressedSize;
+                event.hasSignature = hasSignature;
+                event.signatureEntries = signatureEntries;
+                event.signatureSize = signatureSize;
+                event.replacements = replacements;
+                event.readTime = readTime;
+                event.decodeTime = decodeTime;
+                event.parseTime = parseTime;
+                event.replaceTime = replaceTime;
+                event.encodeTime = encodeTime;
+                event.compressTime = compressTime;
+                event.commit();
+            }
+            event = null;
+        }
+        return totalTime;
+    }
+
+    @Override
+    public String toString() {
+        return name + " in " + jar + " took " + millis(totalTime) + "ms (read " + millis(readTime) +
+                ", decode " + millis(decodeTime) + ", parse " + millis(parseTime) +
+                ", replace " + millis(replaceTime) + ", encode " + millis(encodeTime) +
+                ", compress " + millis(compressTime) + ") size " + uncompressedSize + "/" + compressedSize +
+                (hasSignature ? " signature " + signatureSize + " bytes, " + signatureEntries + " entries, " +
+                        replacements + " replacements" : "");
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+}
@@ -105,4 +105,20 @@ class FileUtil {
             }
         }
     }
+
+    /**
+     * Read the remaining contents of a stream, the stream is not closed
+     * @param in the stream to read
+     * @return the bytes read
+     * @throws IOException
+     */
+    public static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] byteBuffer = new byte[8192];
+        int bytesRead;
+        while ((bytesRead = in.read(byteBuffer)) != -1) {
+            out.write(byteBuffer, 0, bytesRead);
+        }
+        return out.toByteArray();
+    }
 }
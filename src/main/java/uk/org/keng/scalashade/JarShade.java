@@ -17,19 +17,62 @@
 package uk.org.keng.scalashade;
 
 import java.io.*;
-import java.util.Enumeration;
-import java.util.jar.JarEntry;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
 
 /**
  * Utility for shading all classes in a JAR file. Classes are identified as entries with a
  * name ending in ".class". During saving classes containing a @SparkSignature are updated
  * if required, all other classes and JAR contents are unchanged.
+ * <p/>
+ * The input may either be a jar on disk or a stream of jar data (such as stdin), or any other {@link EntrySource},
+ * and the output any {@link EntrySink}, so directories & entries in memory go through the same processing. Entries
+ * are read in order on the calling thread, shaded & compressed on a pool of worker threads and then written in their
+ * original order by a writer thread. The bytes of entry data in-flight are limited by a {@link ByteBudget} so
+ * reading stalls when the workers or writer fall behind, large entries are spilled to disk, so memory use does not
+ * depend on the size of the jar.
+ * <p/>
+ * Entries ending in ".jar" that contain a jar, as used by fat jar layouts such as BOOT-INF/lib/, are shaded
+ * recursively in memory, spilling to temporary files when large. If nothing inside a nested jar needs changing
+ * the original bytes are kept.
+ * <p/>
+ * Several jars may be merged into one, see {@link #JarShade(List, EntryMerger.ConflictPolicy)}. When merging the
+ * classes themselves are also relocated with a {@link Relocator} so the tool can replace separate merge & shade
+ * steps, with entries from all the inputs flowing through the same pipeline.
+ * <p/>
+ * Several differently shaded copies can be written in one pass, see {@link #writeTo(List, boolean)}. Each entry is
+ * read and its signature parsed once, then each output applies its own rules to a copy of the signature and has
+ * its own writer thread.
+ * <p/>
+ * Jars written can be given a {@link ShadeMarker} recording the rules applied, so shading a jar that has already
+ * been shaded the same way, or shading an unchanged input onto an up to date output, is skipped.
  */
 class JarShade {
-    private final String inputJarPath;
-    private final JarFile jarFile;
+    private final List<EntrySource> inputs = new ArrayList<EntrySource>();
+    private final EntryMerger merger;
+    private EntryCompressor compressor = EntryCompressor.forOption(null);
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long maxInFlight = 64 * 1024 * 1024;
+    private long spillThreshold = 8 * 1024 * 1024;
+    private long peakInFlight = 0;
+    private boolean offHeap = false;
+    private OffHeapArena arena = null;
+    private boolean marked = false;
+    private long slowEntryNanos = Long.MAX_VALUE;
+    private PathFilter filter = new PathFilter();
+    private int entryStart = 0;
+    private int entryEnd = Integer.MAX_VALUE;
+    private final ThreadLocal<RewriteContext> contexts = new ThreadLocal<RewriteContext>() {
+        @Override
+        protected RewriteContext initialValue() {
+            return new RewriteContext();
+        }
+    };
 
     /**
      * Construct passing existing jar
@@ -38,103 +81,997 @@ class JarShade {
      * @throws CtxException
      */
     public JarShade(File jar) {
-        try {
-            inputJarPath = jar.getAbsolutePath();
-            jarFile = new JarFile(jar);
-        } catch (IOException e) {
-            throw new CtxException("Could not open jar for reading: " + jar, e);
-        }
+        this(new EntrySource.Zip(jar));
+    }
+
+    /**
+     * Construct reading from any source of entries, such as a directory or entries held in memory
+     *
+     * @param source the entries to shade
+     */
+    JarShade(EntrySource source) {
+        inputs.add(source);
+        merger = null;
+    }
+
+    /**
+     * Construct to merge several jars into one, relocating classes as well as updating their signatures
+     *
+     * @param jars   the jars to merge, entries are kept from the first jar they are found in
+     * @param policy how to handle entries with the same name but different content
+     * @throws CtxException
+     */
+    public JarShade(List<File> jars, EntryMerger.ConflictPolicy policy) {
+        for (File jar : jars)
+            inputs.add(new EntrySource.Zip(jar));
+        merger = new EntryMerger(policy);
+    }
+
+    /**
+     * Construct passing a stream of jar data, the stream is consumed by {@link #writeTo(OutputStream, RuleSet, boolean)}
+     *
+     * @param in   stream of jar data
+     * @param path name of the stream, just for error reporting
+     */
+    public JarShade(InputStream in, String path) {
+        this(new EntrySource.ZipStream(in, path));
+    }
+
+    /**
+     * Set how entries should be compressed in the new jar, defaults to deflate at the default level
+     *
+     * @param compressor the compressor to use
+     */
+    public void setCompression(EntryCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * Set the number of worker threads used to shade & compress entries, defaults to the number of processors
+     *
+     * @param threads number of threads, must be at least 1
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Set the maximum bytes of entry data held in memory while processing, defaults to 64MB. Entries larger than
+     * an eighth of this (capped at 16MB) are spilled to temporary files rather than held in memory.
+     *
+     * @param maxInFlight size in bytes
+     */
+    public void setMaxInFlight(long maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        this.spillThreshold = Math.max(64 * 1024, Math.min(16 * 1024 * 1024, maxInFlight / 8));
+    }
+
+    /**
+     * Set a threshold for logging entries that are slow to process, by default nothing is logged
+     *
+     * @param millis entries taking longer than this are logged to stderr with a breakdown of where time went
+     */
+    public void setSlowEntryThreshold(long millis) {
+        this.slowEntryNanos = millis * 1000000L;
+    }
+
+    /**
+     * Hold entry data in an off-heap arena rather than on the heap while it is in-flight, so the heap only holds
+     * metadata and decoded signatures however large the jar. Classes are copied into a per-thread buffer to be read,
+     * costing a copy per class, so this is off by default.
+     *
+     * @param offHeap true to use an arena
+     */
+    void setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Record the rules applied in a marker entry of jars written, and skip shading when the markers of the input or
+     * output show the work is already done, see {@link ShadeMarker}. Markers in the input are dropped when it is
+     * shaded. Off by default, so the entries of the output are those of the input.
+     *
+     * @param marked true to use markers
+     */
+    void setMarked(boolean marked) {
+        this.marked = marked;
+    }
+
+    /**
+     * Set which entries are processed, entries the filter does not accept are copied unchanged without being
+     * parsed, relocated or opened if they are nested jars. When reading a jar file their compressed data is copied
+     * as it is rather than being inflated and compressed again. By default all entries are processed.
+     *
+     * @param filter the entry path filter
+     */
+    void setFilter(PathFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Limit processing to a range of entries of each input, as used for splitting a jar into shards. Entries are
+     * numbered in the order they are read, which for a jar on disk is central directory order.
+     *
+     * @param start index of the first entry to process
+     * @param end   index after the last entry to process
+     */
+    void setEntryRange(int start, int end) {
+        this.entryStart = start;
+        this.entryEnd = end;
     }
 
     /**
      * Copy contents of jar to new location with updates classes as needed.
      *
      * @param jar     location of new jar, will be created/overwritten as needed
-     * @param from    Absolute namespace to change
-     * @param to      Absolute namespace to use instead
+     * @param rules   the namespace replacements to apply
      * @param verbose If true, extra debug is printed
      */
-    public void writeTo(File jar, String from, String to, boolean verbose) {
-
-        // Open new JAR
-        JarOutputStream jos;
+    public void writeTo(File jar, RuleSet rules, boolean verbose) {
+        if (alreadyShaded(jar, rules, verbose))
+            return;
+        OutputStream out;
         try {
-            jos = new JarOutputStream(new FileOutputStream(jar));
+            out = new FileOutputStream(jar);
         } catch (IOException e) {
             throw new CtxException("Could not open jar for writing: " + jar, e);
         }
+        writeTo(new EntrySink.Zip(new BufferedOutputStream(out, 64 * 1024), jar.getAbsolutePath()), rules, verbose);
+    }
 
-        // Iterate over existing jar
-        Enumeration<JarEntry> entries = jarFile.entries();
-        while (entries.hasMoreElements()) {
-            JarEntry entry = entries.nextElement();
+    /**
+     * Check the markers of the input & output jars to see if shading can be skipped. If the output was written from
+     * the same inputs with the same rules & options it is left in place, if a single input was itself written with
+     * the same rules & options it is copied to the output. Only the central directories are read, the inputs are
+     * closed if shading is skipped.
+     *
+     * @param jar     location of the new jar
+     * @param rules   the namespace replacements to apply
+     * @param verbose If true, extra debug is printed
+     * @return true if the output is complete
+     */
+    boolean alreadyShaded(File jar, RuleSet rules, boolean verbose) {
+        String inputDigest = marked && fullRange() ? inputDigest() : null;
+        if (inputDigest == null)
+            return false;
+        String rulesHash = ShadeMarker.rulesHash(rules, filter, merger, compressor);
+        ShadeMarker outputMarker = ShadeMarker.read(jar);
+        if (outputMarker != null && outputMarker.rulesHash.equals(rulesHash) &&
+                inputDigest.equals(outputMarker.inputDigest)) {
+            closeInputs();
+            if (verbose)
+                System.out.println("Output is up to date: " + jar.getAbsolutePath());
+            return true;
+        }
 
-            // Directories are create the same
-            if (entry.isDirectory()) {
-                try {
-                    jos.putNextEntry(new JarEntry(entry.getName()));
-                    jos.closeEntry();
-                } catch (IOException e) {
-                    throw new CtxException("Could not write jar directory entry for " + entry.getName() + " in: " + jar.getAbsolutePath());
-                }
-            } else {
+        if (merger != null)
+            return false;
+        EntrySource.Zip input = (EntrySource.Zip) inputs.get(0);
+        ShadeMarker inputMarker = ShadeMarker.read(input.jarFile());
+        if (inputMarker == null || !inputMarker.rulesHash.equals(rulesHash) ||
+                !inputMarker.entriesDigest.equals(inputDigest))
+            return false;
+        closeInputs();
+        // The output may already be a copy of the input
+        if (outputMarker == null || !outputMarker.entriesDigest.equals(inputDigest))
+            FileUtil.copyFile(input.file(), jar);
+        if (verbose)
+            System.out.println("Already shaded with these rules, copied: " + input.path());
+        return true;
+    }
 
-                // Open other entries for reading
-                InputStream in;
-                try {
-                    in = jarFile.getInputStream(entry);
-                } catch (IOException e) {
-                    throw new CtxException("Could not read entry for " + entry.getName() + " in: " + inputJarPath, e);
-                }
+    void closeInputs() {
+        for (EntrySource input : inputs)
+            input.close();
+    }
+
+    /**
+     * @return true if all entries of the inputs are processed, so the output is a complete jar
+     */
+    private boolean fullRange() {
+        return entryStart == 0 && entryEnd == Integer.MAX_VALUE;
+    }
+
+    /**
+     * Copy contents of jar to a stream with updates classes as needed. The stream is closed on completion.
+     *
+     * @param out     stream to write the new jar to
+     * @param rules   the namespace replacements to apply
+     * @param verbose If true, extra debug is printed
+     */
+    public void writeTo(OutputStream out, RuleSet rules, boolean verbose) {
+        writeTo(new EntrySink.Zip(new BufferedOutputStream(out, 64 * 1024), "<stdout>"), rules, verbose);
+    }
 
-                if (entry.getName().endsWith(".class")) {
-                    // If we have a class try process @ScalaSignature
+    /**
+     * Copy the entries to any sink with updated classes as needed, the sink is closed on completion
+     *
+     * @param sink    where to write the entries
+     * @param rules   the namespace replacements to apply
+     * @param verbose If true, extra debug is printed
+     */
+    void writeTo(EntrySink sink, RuleSet rules, boolean verbose) {
+        writeTo(Collections.singletonList(new Profile(null, rules, sink)), verbose);
+    }
+
+    /**
+     * A named set of namespace replacements and the output to write with them applied
+     */
+    static class Profile {
+        final String name;
+        final RuleSet rules;
+        final EntrySink sink;
+
+        /**
+         * @param name  name of the profile, used when logging, may be null
+         * @param rules the namespace replacements to apply
+         * @param sink  where to write the entries
+         */
+        Profile(String name, RuleSet rules, EntrySink sink) {
+            this.name = name;
+            this.rules = rules;
+            this.sink = sink;
+        }
+    }
+
+    /**
+     * Copy the entries to several sinks, each with its own namespace replacements, reading the input once. The
+     * sinks are closed on completion.
+     *
+     * @param profiles the outputs to write
+     * @param verbose  If true, extra debug is printed
+     * @throws CtxException if merging into more than one output
+     */
+    void writeTo(List<Profile> profiles, final boolean verbose) {
+        final int outputs = profiles.size();
+        if (outputs == 0)
+            throw new CtxException("No outputs to write");
+        if (merger != null && outputs > 1)
+            throw new CtxException("Merged jars can only be written to a single output");
+
+        JarEvent event = ShadeEvents.recording() ? new JarEvent() : null;
+        if (event != null)
+            event.begin();
+
+        // Sinks that are not jars get stored entries, so nothing is compressed only to be expanded again. Signatures
+        // are only parsed once so the prefilter must pass anything any of the outputs could change.
+        final RuleSet[] rules = new RuleSet[outputs];
+        final EntryCompressor[] compressors = new EntryCompressor[outputs];
+        final EntryCompressor storer = new EntryCompressor(ZipEntry.STORED, 0);
+        Set<String> namespaces = new LinkedHashSet<String>();
+        for (int i = 0; i < outputs; i++) {
+            Profile profile = profiles.get(i);
+            rules[i] = profile.rules;
+            compressors[i] = profile.sink.compressed() ? compressor : storer;
+            namespaces.addAll(profile.rules.asMap().keySet());
+            if (inputs.size() == 1)
+                profile.sink.setComment(inputs.get(0).comment());
+        }
+        final SigPrefilter prefilter = outputs == 1 ? rules[0].prefilter() : new SigPrefilter(namespaces);
+        final String inputDigest = marked ? inputDigest() : null;
+        arena = offHeap ? new OffHeapArena(maxInFlight) : null;
+        compressor.setMemoryLimit(spillThreshold);
+        compressor.setArena(arena);
+        storer.setMemoryLimit(spillThreshold);
+        storer.setArena(arena);
+        final ByteBudget budget = new ByteBudget(maxInFlight);
+        final List<BlockingQueue<Future<Processed>>> pending = new ArrayList<BlockingQueue<Future<Processed>>>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new WorkerFactory("scalashade-worker"));
+        ExecutorService writerThreads = Executors.newFixedThreadPool(outputs, new WorkerFactory("scalashade-writer"));
+        final Relocator relocator = merger != null ? new Relocator(rules[0]) : null;
+
+        // Entries the filter excludes are copied as they are stored when every output compresses them the same way.
+        // Not when merging, as duplicates are detected from the uncompressed content.
+        boolean copyExcluded = merger == null && !filter.acceptsAll();
+        for (EntryCompressor c : compressors)
+            copyExcluded &= c == compressor;
+
+        // Each writer takes results for its output in their original order, the memory of an entry is returned to
+        // the budget once every output has written it. When merging the writer also drops duplicates and writes the
+        // merged service files at the end.
+        final AtomicInteger modifiedCount = new AtomicInteger();
+        List<Future<?>> written = new ArrayList<Future<?>>();
+        for (int i = 0; i < outputs; i++) {
+            final int output = i;
+            final EntrySink sink = profiles.get(i).sink;
+            final String label = outputs > 1 ? profiles.get(i).name + ": " : "";
+            final BlockingQueue<Future<Processed>> queue = new LinkedBlockingQueue<Future<Processed>>();
+            // Only complete jars are marked, not shard segments or other sinks
+            final ShadeMarker.Digest digest = marked && sink instanceof EntrySink.Zip && fullRange() ?
+                    new ShadeMarker.Digest() : null;
+            pending.add(queue);
+            written.add(writerThreads.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
                     try {
-                        ScalaSigClass sigClass = new ScalaSigClass(entry.getName(), in);
-                        ScalaSig sig = sigClass.getSig();
-                        if (sig != null && sig.replace(from, to) > 0) {
-                            // This one need re-writing, swap input stream to updated version
-                            in.close();
-                            in = new ByteArrayInputStream(sigClass.getBytes());
-                            if (verbose)
-                                System.out.println("Modified:  " + entry.getName());
-                        } else {
-                            // Nothing to change here, re-open input stream as signature processing
-                            // may have consumed some of the stream
+                        while (true) {
+                            Future<Processed> next = queue.take();
+                            if (next == END)
+                                break;
+                            Processed processed = getResult(next);
+                            Result result = processed.results[output];
+                            modifiedCount.addAndGet(result.modified.size());
                             try {
-                                in.close();
-                                in = jarFile.getInputStream(entry);
-                            } catch (IOException e) {
-                                throw new CtxException("Could not read entry for " + entry.getName() + " in: " + inputJarPath, e);
+                                if (merger == null) {
+                                    writeResult(sink, result, label, verbose, digest);
+                                } else if (merger.accept(result.entry.name, result.source, result.digest,
+                                        result.services)) {
+                                    if (result.relocated)
+                                        writeDirectories(sink, compressors[output], merger, result.entry, digest);
+                                    writeResult(sink, result, label, verbose, digest);
+                                } else {
+                                    result.entry.data.release();
+                                }
+                            } finally {
+                                processed.written(budget);
                             }
                         }
-                    } catch (Exception e) {
-                        System.err.println("Failed to shade " + entry.getName() + " in " + inputJarPath);
-                        e.printStackTrace();
+                        if (merger != null)
+                            writeServices(sink, compressors[output], merger, verbose, digest);
+                        if (digest != null) {
+                            String rulesHash = ShadeMarker.rulesHash(rules[output], filter, merger,
+                                    compressors[output]);
+                            ShadeMarker marker = new ShadeMarker(rulesHash, inputDigest, digest.finish());
+                            writeResult(sink, new Result(compressors[output].compress(ShadeMarker.NAME,
+                                    System.currentTimeMillis(), new SpillBuffer(marker.toBytes()), false),
+                                    Collections.<String>emptyList()), label, verbose, null);
+                        }
+                        return null;
+                    } catch (Throwable t) {
+                        budget.abort();
+                        throw t instanceof Exception ? (Exception) t : new ExecutionException(t);
                     }
                 }
+            }));
+        }
 
-                // Write the new entry, 'in' could be original or an updated version
+        // Iterate over existing jars, either random access or streamed. Each entry is charged to the budget
+        // before being handed to the pool, so reading stalls when too much is in-flight. Nested jars are also
+        // handed to the pool so they are processed in parallel with each other, as are entries from different
+        // jars when merging.
+        int entryCount = 0;
+        try {
+            for (final EntrySource input : inputs) {
                 try {
-                    jos.putNextEntry(new JarEntry(entry.getName()));
-                    byte[] byteBuffer = new byte[1024];
-                    int bytesRead;
-                    while ((bytesRead = in.read(byteBuffer)) != -1) {
-                        jos.write(byteBuffer, 0, bytesRead);
+                    int index = 0;
+                    while (true) {
+                        final ZipEntry entry = input.nextEntry();
+                        if (entry == null || index >= entryEnd)
+                            break;
+                        if (index++ < entryStart || (marked && entry.getName().equals(ShadeMarker.NAME)))
+                            continue;
+                        final boolean accepted = !entry.isDirectory() && input.accepts(filter, entry);
+                        SpillBuffer raw = copyExcluded && !entry.isDirectory() && !accepted
+                                && compressor.canCopy(entry.getMethod()) ?
+                                input.readCompressed(entry, spillThreshold, arena) : null;
+                        final SpillBuffer data = raw != null ? raw : input.read(entry, spillThreshold, arena);
+                        final long charge;
+                        try {
+                            charge = budget.acquire(memoryCost(data));
+                        } catch (CtxException e) {
+                            data.release();
+                            throw e;
+                        }
+                        Future<Processed> future;
+                        if (raw != null) {
+                            // Nothing to do but write it, so skip the pool
+                            Processed processed = new Processed(copyEntry(entry, raw, input.path(), outputs));
+                            processed.charge = charge;
+                            future = CompletableFuture.completedFuture(processed);
+                        } else {
+                            future = pool.submit(new Callable<Processed>() {
+                                @Override
+                                public Processed call() {
+                                    Processed processed = new Processed(processEntry(entry, accepted, data,
+                                            input.path(), rules, prefilter, relocator, compressors));
+                                    processed.charge = budget.exchange(charge, memoryCost(processed.results));
+                                    return processed;
+                                }
+                            });
+                        }
+                        entryCount++;
+                        for (BlockingQueue<Future<Processed>> queue : pending)
+                            queue.add(future);
                     }
-                    jos.flush();
-                    jos.closeEntry();
-                } catch (IOException e) {
-                    throw new CtxException("Could not write entry for " + entry.getName() + " in: " + jar.getAbsolutePath(), e);
+                } finally {
+                    input.close();
                 }
             }
+            for (BlockingQueue<Future<Processed>> queue : pending)
+                queue.add(END);
+            for (Future<?> future : written)
+                getResult(future);
+        } catch (RuntimeException e) {
+            // Prefer reporting a writer failure as that will have caused the abort
+            budget.abort();
+            for (Future<?> future : written) {
+                if (future.isDone())
+                    getResult(future);
+            }
+            throw e;
+        } finally {
+            pool.shutdownNow();
+            writerThreads.shutdownNow();
+            for (int i = 0; i < outputs; i++)
+                releasePending(pending.get(i), i);
         }
 
         // All done
+        StringBuilder outputPaths = new StringBuilder();
+        for (Profile profile : profiles) {
+            profile.sink.close();
+            if (outputPaths.length() > 0)
+                outputPaths.append(", ");
+            outputPaths.append(profile.sink.path());
+        }
+        compressor.close();
+        compressor.setArena(null);
+        storer.close();
+        peakInFlight = budget.peak();
+        if (event != null && event.shouldCommit()) {
+            event.input = inputPaths();
+            event.output = outputPaths.toString();
+            event.entries = entryCount;
+            event.modified = modifiedCount.get();
+            event.peakInFlight = peakInFlight;
+            event.commit();
+        }
+        if (verbose) {
+            if (merger != null)
+                System.out.println("Duplicate entries: " + merger.getDuplicates() + ", conflicting entries: " +
+                        merger.getConflicts());
+            System.out.println("Peak in-flight bytes: " + peakInFlight);
+            if (arena != null)
+                System.out.println("Peak off-heap bytes: " + arena.peakBytes());
+        }
+        arena = null;
+    }
+
+    /**
+     * @return the input paths, comma separated
+     */
+    private String inputPaths() {
+        StringBuilder sb = new StringBuilder();
+        for (EntrySource input : inputs) {
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(input.path());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Digest the input jars for the output's marker
+     *
+     * @return the digest, or null if the inputs are not all jar files
+     */
+    private String inputDigest() {
+        JarFile[] jars = new JarFile[inputs.size()];
+        for (int i = 0; i < jars.length; i++) {
+            if (!(inputs.get(i) instanceof EntrySource.Zip))
+                return null;
+            jars[i] = ((EntrySource.Zip) inputs.get(i)).jarFile();
+        }
+        return ShadeMarker.digest(jars);
+    }
+
+    /**
+     * Write entries for the parent directories of a relocated entry that the merged jar does not have yet, called on
+     * the writer thread
+     *
+     * @param sink       where the entries are being written
+     * @param compressor compressor for the sink
+     * @param merger     tracks the entries written
+     * @param entry      the relocated entry about to be written
+     * @param marked     digest of the entries written, or null
+     */
+    private static void writeDirectories(EntrySink sink, EntryCompressor compressor, EntryMerger merger,
+                                         ZipWriter.Entry entry, ShadeMarker.Digest marked) {
+        for (String directory : merger.missingDirectories(entry.name)) {
+            ZipWriter.Entry dir = compressor.compress(directory, entry.time, new SpillBuffer(new byte[0]), false);
+            writeResult(sink, new Result(dir, Collections.<String>emptyList()), "", false, marked);
+        }
+    }
+
+    /**
+     * Write the service files merged from all the inputs, called on the writer thread
+     *
+     * @param sink       where the entries are being written
+     * @param compressor compressor for the sink
+     * @param merger     holds the merged service files
+     * @param verbose    If true, extra debug is printed
+     * @param marked     digest of the entries written, or null
+     */
+    private static void writeServices(EntrySink sink, EntryCompressor compressor, EntryMerger merger,
+                                      boolean verbose, ShadeMarker.Digest marked) {
+        long time = System.currentTimeMillis();
+        for (Map.Entry<String, byte[]> service : merger.mergedServices().entrySet()) {
+            ZipWriter.Entry entry = compressor.compress(service.getKey(), time, new SpillBuffer(service.getValue()),
+                    false);
+            writeResult(sink, new Result(entry, Collections.<String>emptyList()), "", verbose, marked);
+        }
+    }
+
+    /**
+     * @return the most bytes of entry data held in memory during the last write
+     */
+    long getPeakInFlight() {
+        return peakInFlight;
+    }
+
+    /**
+     * Marker for the end of the pending results
+     */
+    private static final Future<Processed> END = CompletableFuture.completedFuture(null);
+
+    /**
+     * Allowance for per-entry memory beyond the data
+     */
+    private static final long ENTRY_OVERHEAD = 512;
+
+    /**
+     * Estimate memory needed for some entry data, heap or off-heap, spilled data only needs the entry overhead
+     *
+     * @param data the entry data
+     * @return estimated bytes used
+     */
+    private static long memoryCost(SpillBuffer data) {
+        return ENTRY_OVERHEAD + data.memoryUsed();
+    }
+
+    /**
+     * Estimate memory needed for the results of an entry, data shared between outputs is only counted once
+     *
+     * @param results the entry's result for each output
+     * @return estimated bytes used
+     */
+    private static long memoryCost(Result[] results) {
+        long cost = 0;
+        for (int i = 0; i < results.length; i++) {
+            if (i == 0 || results[i].entry.data != results[i - 1].entry.data)
+                cost += memoryCost(results[i].entry.data);
+        }
+        return cost;
+    }
+
+    /**
+     * Daemon thread factory for the pipeline
+     */
+    static class WorkerFactory implements ThreadFactory {
+        private final String name;
+
+        WorkerFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * The result of processing an entry for one output
+     */
+    private static class Result {
+        final ZipWriter.Entry entry;
+        final List<String> modified;
+        String source;
+        byte[] digest;
+        String services;
+        boolean relocated;
+
+        Result(ZipWriter.Entry entry, List<String> modified) {
+            this.entry = entry;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * The results of processing an entry for all the outputs, its charge to the budget is released once they have
+     * all been written
+     */
+    private static class Processed {
+        final Result[] results;
+        final AtomicInteger unwritten;
+        long charge;
+
+        Processed(Result[] results) {
+            this.results = results;
+            this.unwritten = new AtomicInteger(results.length);
+        }
+
+        void written(ByteBudget budget) {
+            if (unwritten.decrementAndGet() == 0)
+                budget.release(charge);
+        }
+    }
+
+    /**
+     * Process a single entry for the new jars, updating it if it is a class with a signature that needs
+     * changing or a nested jar containing such classes, and compressing it ready for writing. When merging
+     * classes & resources are also relocated and the content digest is taken. Called on worker threads.
+     * <p/>
+     * A class is read and its signature parsed once whatever the number of outputs, each output then applies its
+     * rules to its own copy of the signature. Outputs that leave an entry unchanged share its data.
+     *
+     * @param entry       the existing entry
+     * @param accepted    true if the entry is a file the filter accepts, so should be processed
+     * @param data        the entry contents, ownership passes to the results
+     * @param path        name of the jar containing the entry, just for error reporting
+     * @param rules       the namespace replacements to apply, for each output
+     * @param prefilter   rejects signatures that none of the rules could change
+     * @param relocator   relocates classes & resources, null if only signatures are being updated
+     * @param compressors compresses the entry, for each output
+     * @return the entry to write, for each output
+     */
+    private Result[] processEntry(ZipEntry entry, boolean accepted, SpillBuffer data, String path, RuleSet[] rules,
+                                  SigPrefilter prefilter, Relocator relocator, EntryCompressor[] compressors) {
+        int outputs = rules.length;
+        SpillBuffer[] outputData = new SpillBuffer[outputs];
+        List<List<String>> modified = new ArrayList<List<String>>(outputs);
+        for (int i = 0; i < outputs; i++) {
+            outputData[i] = data;
+            modified.add(Collections.<String>emptyList());
+        }
+        boolean stored = false;
+        String services = null;
+        String name = relocator != null && accepted ? relocator.mapPath(entry.getName()) : entry.getName();
+        boolean nestedJar = accepted && isNestedJar(name, data);
+        RewriteContext ctx = contexts.get();
+
+        // Nested jars recurse through here so can't share the thread's stats
+        EntryStats stats = (nestedJar ? new EntryStats() : ctx.stats()).begin(path, name);
+        stats.uncompressedSize = data.size();
+        if (accepted && name.endsWith(".class")) {
+            // If we have a class try process @ScalaSignature, working directly on the entry bytes when we can
+            try {
+                byte[] bytes;
+                int length;
+                if (data.hasArray()) {
+                    bytes = data.array();
+                    length = (int) data.size();
+                } else {
+                    InputStream in = data.openStream();
+                    try {
+                        length = ctx.readEntry(in);
+                        bytes = ctx.entryBuffer();
+                    } finally {
+                        in.close();
+                    }
+                }
+
+                // Relocate references in the byte code first, the signature is left alone by this
+                boolean relocated = false;
+                if (relocator != null && relocator.mayReference(bytes, length)) {
+                    byte[] relocatedBytes = relocator.relocateClass(name, bytes, length);
+                    if (relocatedBytes != null) {
+                        bytes = relocatedBytes;
+                        length = bytes.length;
+                        relocated = true;
+                    }
+                }
+
+                ScalaSig sig = null;
+                ScalaSigClass sigClass = null;
+                if (ScalaSigClass.mayHaveSignature(bytes, length)) {
+                    sigClass = new ScalaSigClass(name, bytes, length, ctx, stats, prefilter);
+                    sig = sigClass.getSig();
+                }
+                for (int i = 0; i < outputs; i++) {
+                    // Copies are taken before the last output updates the parsed signature itself
+                    ScalaSig outputSig = sig != null && i < outputs - 1 ? sig.copy() : sig;
+                    int replacements = 0;
+                    if (outputSig != null) {
+                        long start = System.nanoTime();
+                        replacements = rules[i].apply(outputSig);
+                        stats.replaceTime += System.nanoTime() - start;
+                        stats.replacements += replacements;
+                    }
+                    if (replacements > 0 || relocated) {
+                        // This one need re-writing, swap to updated version
+                        outputData[i] = SpillBuffer.wrap(replacements > 0 ? sigClass.getBytes(outputSig) : bytes,
+                                arena);
+                        modified.set(i, Collections.singletonList(name));
+                    }
+                }
+            } catch (Exception e) {
+                System.err.println("Failed to shade " + name + " in " + path);
+                e.printStackTrace();
+            } finally {
+                ctx.reset();
+            }
+        } else if (nestedJar) {
+            // Nested jars must keep their storage method, some loaders need them uncompressed
+            stored = entry.getMethod() == ZipEntry.STORED;
+            List<List<String>> nested = new ArrayList<List<String>>(outputs);
+            for (int i = 0; i < outputs; i++)
+                nested.add(new ArrayList<String>());
+            SpillBuffer[] shaded = shadeNested(name, data, path + "!/" + name, rules, prefilter, relocator, nested);
+            for (int i = 0; i < outputs; i++) {
+                if (!nested.get(i).isEmpty()) {
+                    outputData[i] = shaded[i];
+                    modified.set(i, nested.get(i));
+                } else {
+                    // Nothing changed so keep the original bytes
+                    shaded[i].release();
+                }
+            }
+        } else if (accepted && relocator != null && Relocator.isServiceFile(name)) {
+            // Service files are merged by the writer, they are kept uncompressed so that is cheap
+            services = relocator.mapServices(new String(readFully(data), StandardCharsets.UTF_8));
+            outputData[0] = new SpillBuffer(services.getBytes(StandardCharsets.UTF_8));
+            stored = true;
+        }
+
+        // The original data now has an owner for each output still using it
+        int uses = 0;
+        for (SpillBuffer d : outputData) {
+            if (d == data)
+                uses++;
+        }
+        if (uses == 0)
+            data.release();
+        for (int i = 1; i < uses; i++)
+            data.retain();
+        byte[] digest = merger != null ? digest(outputData[0], ctx) : null;
+
+        long time = entry.getTime() != -1 ? entry.getTime() : System.currentTimeMillis();
+        long start = System.nanoTime();
+        Result[] results = new Result[outputs];
+        for (int i = 0; i < outputs; i++) {
+            ZipWriter.Entry compressed = null;
+            for (int j = 0; j < i && compressed == null; j++) {
+                if (outputData[j] == outputData[i] && compressors[j] == compressors[i]) {
+                    // Same data compressed the same way, share the compressed copy
+                    outputData[i].release();
+                    compressed = results[j].entry;
+                    compressed.data.retain();
+                }
+            }
+            if (compressed == null) {
+                compressed = compressors[i].compress(name, time, outputData[i], stored)
+                        .withMetadata(entry.getExtra(), entry.getComment());
+            }
+            results[i] = new Result(compressed, modified.get(i));
+            results[i].source = path;
+            results[i].digest = digest;
+            results[i].services = services;
+            results[i].relocated = !name.equals(entry.getName());
+        }
+        stats.compressTime = System.nanoTime() - start;
+        stats.compressedSize = results[0].entry.data.size();
+        if (stats.end() > slowEntryNanos)
+            System.err.println("Slow entry: " + stats);
+        return results;
+    }
+
+    /**
+     * Copy an entry the filter excludes as it is stored, with its compressed data, CRC & sizes unchanged
+     *
+     * @param entry   the existing entry
+     * @param data    the compressed entry contents, ownership passes to the results
+     * @param path    name of the jar containing the entry, just for error reporting
+     * @param outputs the number of outputs, which all share the data
+     * @return the entry to write, for each output
+     */
+    private static Result[] copyEntry(ZipEntry entry, SpillBuffer data, String path, int outputs) {
+        long time = entry.getTime() != -1 ? entry.getTime() : System.currentTimeMillis();
+        ZipWriter.Entry copy = new ZipWriter.Entry(entry.getName(), time, entry.getMethod(), entry.getCrc(),
+                entry.getSize(), data).withMetadata(entry.getExtra(), entry.getComment());
+        Result[] results = new Result[outputs];
+        for (int i = 0; i < outputs; i++) {
+            if (i > 0)
+                data.retain();
+            results[i] = new Result(copy, Collections.<String>emptyList());
+            results[i].source = path;
+        }
+        return results;
+    }
+
+    /**
+     * Calculate the SHA-256 digest of some entry data
+     *
+     * @param data the entry data
+     * @param ctx  working buffers for this thread
+     * @return the digest
+     */
+    private static byte[] digest(SpillBuffer data, RewriteContext ctx) {
+        MessageDigest md = ctx.sha256();
+        if (data.hasArray()) {
+            md.update(data.array(), 0, (int) data.size());
+            return md.digest();
+        }
         try {
-            jos.close();
+            InputStream in = data.openStream();
+            try {
+                byte[] buffer = ctx.entryBuffer();
+                int read;
+                while ((read = in.read(buffer)) != -1)
+                    md.update(buffer, 0, read);
+            } finally {
+                in.close();
+            }
         } catch (IOException e) {
-            throw new CtxException("Error closing jar : " + jar.getAbsolutePath(), e);
+            throw new CtxException("Could not read spilled entry data", e);
+        }
+        return md.digest();
+    }
+
+    /**
+     * Read entry data into an array, only for small entries
+     *
+     * @param data the entry data
+     * @return the bytes
+     */
+    private static byte[] readFully(SpillBuffer data) {
+        try {
+            InputStream in = data.openStream();
+            try {
+                return FileUtil.readFully(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new CtxException("Could not read entry data", e);
+        }
+    }
+
+    /**
+     * Test if an entry is a jar nested within the jar being processed
+     *
+     * @param name the entry name
+     * @param data the entry contents
+     * @return true if looks like a jar
+     */
+    private static boolean isNestedJar(String name, SpillBuffer data) {
+        if (!name.endsWith(".jar") || data.size() < 4)
+            return false;
+        try {
+            InputStream in = data.openStream();
+            try {
+                return new DataInputStream(in).readInt() == 0x504b0304;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Shade a jar nested within the jar being processed. The nested jar is streamed from the data and its
+     * entries are processed in order on the calling thread, producing a new nested jar for each output.
+     *
+     * @param name      the entry name
+     * @param data      the nested jar contents, this is not released
+     * @param path      name of the nested jar, just for error reporting
+     * @param rules     the namespace replacements to apply, for each output
+     * @param prefilter rejects signatures that none of the rules could change
+     * @param relocator relocates classes & resources, may be null
+     * @param modified  receives names of modified classes, for each output
+     * @return the shaded nested jar, for each output
+     */
+    private SpillBuffer[] shadeNested(String name, SpillBuffer data, String path, RuleSet[] rules,
+                                      SigPrefilter prefilter, Relocator relocator, List<List<String>> modified) {
+        int outputs = rules.length;
+        SpillBuffer[] shaded = new SpillBuffer[outputs];
+        ZipWriter[] writers = new ZipWriter[outputs];
+        // Nested jars are always jars so compress as configured whatever the sink
+        EntryCompressor[] compressors = new EntryCompressor[outputs];
+        for (int i = 0; i < outputs; i++) {
+            shaded[i] = new SpillBuffer(spillThreshold, arena);
+            writers[i] = new ZipWriter(shaded[i], path);
+            compressors[i] = compressor;
+        }
+        InputStream in = null;
+        try {
+            in = data.openStream();
+            EntrySource nestedStream = new EntrySource.ZipStream(in, path);
+            ZipEntry entry;
+            while ((entry = nestedStream.nextEntry()) != null) {
+                boolean accepted = !entry.isDirectory() && nestedStream.accepts(filter, entry);
+                Result[] results = processEntry(entry, accepted, nestedStream.read(entry, spillThreshold, arena), path,
+                        rules, prefilter, relocator, compressors);
+                try {
+                    for (int i = 0; i < outputs; i++)
+                        writers[i].write(results[i].entry);
+                } finally {
+                    for (Result result : results)
+                        result.entry.data.release();
+                }
+                for (int i = 0; i < outputs; i++) {
+                    for (String m : results[i].modified)
+                        modified.get(i).add(name + "!/" + m);
+                }
+            }
+            for (ZipWriter writer : writers)
+                writer.close();
+            return shaded;
+        } catch (IOException e) {
+            for (SpillBuffer buffer : shaded)
+                buffer.release();
+            throw new CtxException("Could not read nested jar: " + path, e);
+        } catch (RuntimeException e) {
+            for (SpillBuffer buffer : shaded)
+                buffer.release();
+            throw e;
+        } finally {
+            try {
+                if (in != null)
+                    in.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Wait for a pipeline task to complete
+     *
+     * @param future the task
+     * @return the task result
+     * @throws CtxException if the task failed
+     */
+    private static <T> T getResult(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CtxException("Interrupted while waiting for entry processing", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ExecutionException)
+                cause = cause.getCause();
+            if (cause instanceof CtxException)
+                throw (CtxException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new CtxException("Unexpected error processing entry", (Exception) cause);
+        }
+    }
+
+    /**
+     * Write a processed entry to the new jar, its data is released
+     *
+     * @param sink    where the entries are being written
+     * @param result  the processed entry
+     * @param label   prefix for logged names, to tell outputs apart
+     * @param verbose If true, extra debug is printed
+     * @param marked  digest of the entries written, added to if not null
+     */
+    private static void writeResult(EntrySink sink, Result result, String label, boolean verbose,
+                                    ShadeMarker.Digest marked) {
+        try {
+            if (verbose) {
+                for (String name : result.modified) {
+                    System.out.println("Modified:  " + label + name);
+                }
+            }
+            sink.write(result.entry);
+            if (marked != null)
+                marked.add(result.entry.name, result.entry.crc, result.entry.size);
+        } finally {
+            result.entry.data.release();
+        }
+    }
+
+    /**
+     * Release the data of any entries that were processed but not written
+     *
+     * @param pending the pending entries of an output
+     * @param output  index of the output
+     */
+    private static void releasePending(Collection<Future<Processed>> pending, int output) {
+        for (Future<Processed> future : pending) {
+            try {
+                if (future != END)
+                    future.get().results[output].entry.data.release();
+            } catch (Exception e) {
+                // Ignore, nothing to release
+            }
         }
     }
 }
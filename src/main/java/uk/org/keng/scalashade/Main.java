@@ -17,8 +17,13 @@ package uk.org.keng.scalashade;
 
 import org.apache.commons.cli.*;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Main entry, parse args and execute
@@ -30,10 +35,50 @@ public class Main {
 
     public static void main(String[] args) throws IOException {
 
+        // Signature namespace index commands
+        if (args.length > 0 && (args[0].equals("index") || args[0].equals("query"))) {
+            indexCommand(args);
+            return;
+        }
+
         // Pull args apart
         Options options = new Options();
         options.addOption("h", "help", false, "help");
         options.addOption("v", "verbose", false, "logs classes being modified");
+        options.addOption(Option.builder("c").longOpt("compression").hasArg().argName("level")
+                .desc("jar compression, 'stored' or a deflate level 0-9").build());
+        options.addOption(Option.builder("t").longOpt("threads").hasArg().argName("count")
+                .desc("worker threads for jar processing, defaults to number of processors").build());
+        options.addOption(Option.builder("m").longOpt("max-inflight").hasArg().argName("MB")
+                .desc("maximum MB of jar entry data held in memory, defaults to 64").build());
+        options.addOption(Option.builder().longOpt("off-heap")
+                .desc("hold in-flight jar entry data off the Java heap, for large jars on small heaps").build());
+        options.addOption(Option.builder().longOpt("marker")
+                .desc("record the rules applied in the output jar and skip shading when already done").build());
+        options.addOption(Option.builder().longOpt("slow-entry-ms").hasArg().argName("ms")
+                .desc("log jar entries that take longer than this to process").build());
+        options.addOption(Option.builder("i").longOpt("input").hasArg().argName("jar")
+                .desc("merge this jar into the output, relocating its classes, may be repeated").build());
+        options.addOption(Option.builder().longOpt("shards").hasArg().argName("count")
+                .desc("split jar processing across this many worker JVMs, for very large jars").build());
+        options.addOption(Option.builder().longOpt("shard-heap").hasArg().argName("MB")
+                .desc("maximum heap of each shard worker JVM").build());
+        options.addOption(Option.builder().longOpt("shard-range").numberOfArgs(2).argName("start> <end")
+                .desc("only process the jar entries from index start up to end, used by shard workers").build());
+        options.addOption(Option.builder().longOpt("include").hasArg().argName("glob")
+                .desc("only process entries with paths matching this pattern, may be repeated").build());
+        options.addOption(Option.builder().longOpt("exclude").hasArg().argName("glob")
+                .desc("copy entries with paths matching this pattern without processing them, may be repeated").build());
+        options.addOption(Option.builder().longOpt("watch")
+                .desc("keep an output directory up to date with changes to an input class directory").build());
+        options.addOption(Option.builder().longOpt("debounce-ms").hasArg().argName("ms")
+                .desc("when watching, how long a file must be unchanged before it is processed, defaults to 20").build());
+        options.addOption(Option.builder().longOpt("profile").numberOfArgs(2).argName("name> <output")
+                .desc("write an output with the unqualified namespace pairs plus those whose from-namespace is " +
+                        "prefixed '<name>:', may be repeated to write several outputs from one read of the input, " +
+                        "one output may be '-' for stdout").build());
+        options.addOption(Option.builder().longOpt("conflict").hasArg().argName("policy")
+                .desc("when merging, how to handle entries with different content, 'first', 'warn' (default) or 'fail'").build());
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd;
         try {
@@ -43,40 +88,233 @@ public class Main {
             return;
         }
 
-        if (cmd.getArgList().size() != 4 || cmd.hasOption("h")) {
+        // When merging inputs are given with -i so the namespaces follow the output, with profiles the outputs are
+        // given with the profiles so the namespaces follow the input
+        boolean merge = cmd.hasOption("i");
+        boolean profiles = cmd.hasOption("profile");
+        int firstNamespace = merge || profiles ? 1 : 2;
+        int argCount = cmd.getArgList().size();
+        if (argCount < firstNamespace + 2 || (argCount - firstNamespace) % 2 != 0 || cmd.hasOption("h")) {
             HelpFormatter formatter = new HelpFormatter();
-            formatter.printHelp("scala-shade [opts] <input jar/class> <output jar/class> <from-namespace> <to-namespace>", header, options, footer);
+            formatter.printHelp("scala-shade [opts] <input jar/class/dir|-> <output jar/class/dir|-> <from-namespace> <to-namespace> [<from-namespace> <to-namespace>...]" +
+                    System.getProperty("line.separator") + "       scala-shade [opts] -i <input jar> [-i <input jar>...] <output jar|-> <from-namespace> <to-namespace> [...]" +
+                    System.getProperty("line.separator") + "       scala-shade [opts] --profile <name> <output jar/dir|-> [--profile ...] <input jar/dir|-> [<name>:]<from-namespace> <to-namespace> [...]", header, options, footer);
             return;
         }
 
         // Set parameters/flags
         boolean verbose = cmd.hasOption("v");
-        String in = cmd.getArgList().get(0);
-        String out = cmd.getArgList().get(1);
-        String from = cmd.getArgList().get(2);
-        String to = cmd.getArgList().get(3);
+        boolean offHeap = cmd.hasOption("off-heap");
+        boolean marked = cmd.hasOption("marker");
+        String in = merge ? null : cmd.getArgList().get(0);
+        String out = profiles ? null : cmd.getArgList().get(firstNamespace - 1);
+        RuleSet rules = new RuleSet();
+        Map<String, RuleSet> profileRules = new LinkedHashMap<String, RuleSet>();
+        Map<String, String> profileOutputs = new LinkedHashMap<String, String>();
+        EntryCompressor compressor;
+        EntryMerger.ConflictPolicy policy;
+        int threads;
+        long maxInFlight;
+        long slowEntryMillis;
+        int shards;
+        int shardHeap;
+        int debounceMillis;
+        PathFilter filter = new PathFilter();
+        try {
+            if (profiles) {
+                String[] values = cmd.getOptionValues("profile");
+                for (int i = 0; i + 1 < values.length; i += 2) {
+                    if (profileOutputs.put(values[i], values[i + 1]) != null)
+                        throw new CtxException("Profile given more than once: " + values[i]);
+                    profileRules.put(values[i], new RuleSet());
+                }
+                if (Collections.frequency(profileOutputs.values(), "-") > 1)
+                    throw new CtxException("Only one profile output can be '-'");
+            }
+            for (int arg = firstNamespace; arg < argCount; arg += 2) {
+                // A from-namespace may be qualified by the profile it belongs to, otherwise it applies to all
+                String from = cmd.getArgList().get(arg);
+                String to = cmd.getArgList().get(arg + 1);
+                int colon = from.indexOf(':');
+                if (colon != -1) {
+                    RuleSet profile = profileRules.get(from.substring(0, colon));
+                    if (profile == null)
+                        throw new CtxException("Unknown profile for namespace: " + from);
+                    profile.add(from.substring(colon + 1), to);
+                } else {
+                    rules.add(from, to);
+                    for (RuleSet profile : profileRules.values())
+                        profile.add(from, to);
+                }
+            }
+            compressor = EntryCompressor.forOption(cmd.getOptionValue("c"));
+            policy = EntryMerger.ConflictPolicy.forOption(cmd.getOptionValue("conflict"));
+            threads = intOption(cmd, "t", Runtime.getRuntime().availableProcessors());
+            maxInFlight = intOption(cmd, "m", 64) * 1024L * 1024L;
+            slowEntryMillis = intOption(cmd, "slow-entry-ms", Integer.MAX_VALUE);
+            shards = intOption(cmd, "shards", 1);
+            shardHeap = intOption(cmd, "shard-heap", 0);
+            debounceMillis = intOption(cmd, "debounce-ms", 20);
+            if (cmd.hasOption("include")) {
+                for (String glob : cmd.getOptionValues("include"))
+                    filter.include(glob);
+            }
+            if (cmd.hasOption("exclude")) {
+                for (String glob : cmd.getOptionValues("exclude"))
+                    filter.exclude(glob);
+            }
+            if (cmd.hasOption("watch") && (merge || profiles || !new File(in).isDirectory()))
+                throw new CtxException("Option watch needs a class directory for input and a single output");
+            if (shards > 1 && (merge || profiles || in.equals("-") || out.equals("-")))
+                throw new CtxException("Option shards needs a jar file for input and output");
+            if (merge && profiles)
+                throw new CtxException("Option profile can not be used when merging");
+        } catch (CtxException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+
+        if (cmd.hasOption("shard-range")) {
+            // Worker JVM started for --shards, a failure is left to end the JVM with a non-zero exit code
+            String[] range = cmd.getOptionValues("shard-range");
+            JarShade jarShade = new JarShade(new File(in));
+            configure(jarShade, compressor, threads, maxInFlight, slowEntryMillis, filter, offHeap, marked);
+            jarShade.setEntryRange(Integer.parseInt(range[0]), Integer.parseInt(range[1]));
+            jarShade.writeTo(new File(out), rules, verbose);
+            return;
+        }
+
+        if (profiles) {
+            // Several outputs from a single read of the input
+            try {
+                File inFile = new File(in);
+                JarShade jarShade;
+                if (in.equals("-"))
+                    jarShade = new JarShade(new BufferedInputStream(new FileInputStream(FileDescriptor.in)), "<stdin>");
+                else if (inFile.isDirectory())
+                    jarShade = new JarShade(new EntrySource.Directory(inFile));
+                else
+                    jarShade = new JarShade(inFile);
+                configure(jarShade, compressor, threads, maxInFlight, slowEntryMillis, filter, offHeap, marked);
+                // As for a single output, keep stdout clean for jar data by routing logging to stderr
+                if (profileOutputs.containsValue("-"))
+                    System.setOut(System.err);
+                List<JarShade.Profile> outputs = new ArrayList<JarShade.Profile>();
+                for (Map.Entry<String, String> profile : profileOutputs.entrySet()) {
+                    outputs.add(new JarShade.Profile(profile.getKey(), profileRules.get(profile.getKey()),
+                            openSink(profile.getValue())));
+                }
+                jarShade.writeTo(outputs, verbose);
+            } catch (CtxException ex) {
+                ex.printStackTrace();
+            }
+            return;
+        }
+
+        // '-' selects stdin/stdout, keep stdout clean for jar data by routing logging to stderr
+        OutputStream stdout = null;
+        if (out.equals("-")) {
+            stdout = new FileOutputStream(FileDescriptor.out);
+            System.setOut(System.err);
+        }
+
+        if (merge) {
+            // Combine the inputs into a single jar
+            List<File> jars = new ArrayList<File>();
+            for (String jar : cmd.getOptionValues("i"))
+                jars.add(new File(jar));
+            try {
+                JarShade jarShade = new JarShade(jars, policy);
+                configure(jarShade, compressor, threads, maxInFlight, slowEntryMillis, filter, offHeap, marked);
+                writeJar(jarShade, out, stdout, rules, verbose);
+            } catch (CtxException ex) {
+                ex.printStackTrace();
+            }
+            return;
+        }
+
+        if (in.equals("-")) {
+            // Sniff the stream to see what we have been given
+            BufferedInputStream stdin = new BufferedInputStream(new FileInputStream(FileDescriptor.in));
+            stdin.mark(4);
+            int magic = new DataInputStream(stdin).readInt();
+            stdin.reset();
+            if (magic == 0xcafebabe) {
+                shadeClass("<stdin>", FileUtil.readFully(stdin), out, stdout, rules, verbose);
+            } else if (magic == 0x504b0304) {
+                try {
+                    JarShade jarShade = new JarShade(stdin, "<stdin>");
+                    configure(jarShade, compressor, threads, maxInFlight, slowEntryMillis, filter, offHeap, marked);
+                    writeJar(jarShade, out, stdout, rules, verbose);
+                } catch (CtxException ex) {
+                    ex.printStackTrace();
+                }
+            } else {
+                System.err.println("Input stream does not appear to be either a class file or jar.");
+            }
+            return;
+        }
 
         File inFile = new File(in);
-        if (FileUtil.isClass(inFile)) {
-            // Looks like we got a class file, so deal with it directly
+        if (inFile.isDirectory() && !cmd.hasOption("watch") && (stdout != null || out.endsWith(".jar"))) {
+            // Pack a class directory into a jar
             try {
-                ScalaSigClass sigClass = new ScalaSigClass(in);
-                ScalaSig sig = sigClass.getSig();
-                if (sig != null && sig.replace(from, to) > 0) {
-                    sigClass.writeTo(out);
-                    if (verbose)
-                        System.out.println("Modified:  " + in);
+                JarShade jarShade = new JarShade(new EntrySource.Directory(inFile));
+                configure(jarShade, compressor, threads, maxInFlight, slowEntryMillis, filter, offHeap, marked);
+                writeJar(jarShade, out, stdout, rules, verbose);
+            } catch (CtxException ex) {
+                ex.printStackTrace();
+            }
+        } else if (inFile.isDirectory()) {
+            // Mirror a class directory, keeping it up to date if watching
+            try {
+                WatchShade watchShade = new WatchShade(inFile, new File(out), rules, verbose);
+                watchShade.setThreads(threads);
+                watchShade.setDebounce(debounceMillis);
+                watchShade.setFilter(filter);
+                if (cmd.hasOption("watch")) {
+                    watchShade.run();
                 } else {
-                    FileUtil.copyFile(inFile, new File(out));
+                    int updated = watchShade.sync();
+                    if (verbose)
+                        System.out.println(updated + " files updated");
                 }
-            } catch (CtxException e) {
-                e.printStackTrace();
+            } catch (CtxException ex) {
+                ex.printStackTrace();
+            }
+        } else if (FileUtil.isClass(inFile)) {
+            // Looks like we got a class file, so deal with it directly
+            FileInputStream classIn = new FileInputStream(inFile);
+            try {
+                shadeClass(in, FileUtil.readFully(classIn), out, stdout, rules, verbose);
+            } finally {
+                classIn.close();
             }
         } else if (FileUtil.isJar(inFile)) {
             // Looks like we got a jar, use helper to handle
             try {
+                if (shards > 1) {
+                    ShardShade shardShade = new ShardShade(inFile, shards);
+                    shardShade.setCompression(cmd.getOptionValue("c"));
+                    shardShade.setThreads(threads);
+                    shardShade.setMaxInFlightMB((int) (maxInFlight / (1024 * 1024)));
+                    shardShade.setHeapMB(shardHeap);
+                    shardShade.setFilter(filter);
+                    if (slowEntryMillis != Integer.MAX_VALUE)
+                        shardShade.setSlowEntryThreshold(slowEntryMillis);
+                    shardShade.setOffHeap(offHeap);
+                    shardShade.setMarked(marked);
+                    shardShade.writeTo(new File(out), rules, verbose);
+                    return;
+                }
                 JarShade jarShade = new JarShade(new File(in));
-                jarShade.writeTo(new File(out), from, to, verbose);
+                configure(jarShade, compressor, threads, maxInFlight, slowEntryMillis, filter, offHeap, marked);
+                if (stdout == null && new File(out).isDirectory()) {
+                    // Unpack into an existing directory
+                    jarShade.writeTo(new EntrySink.Directory(new File(out)), rules, verbose);
+                } else {
+                    writeJar(jarShade, out, stdout, rules, verbose);
+                }
             } catch (CtxException ex) {
                 ex.printStackTrace();
             }
@@ -84,4 +322,141 @@ public class Main {
             System.err.println("Input file " + in + " does not appear to be either a class file or jar.");
         }
     }
+
+    /**
+     * Build or query an index of the namespaces referenced from signatures
+     */
+    private static void indexCommand(String[] args) {
+        Options options = new Options();
+        options.addOption("h", "help", false, "help");
+        options.addOption(Option.builder("t").longOpt("threads").hasArg().argName("count")
+                .desc("worker threads for decoding, defaults to number of processors").build());
+        options.addOption("v", "verbose", false, "log the classes that could not be indexed");
+        CommandLine cmd;
+        try {
+            cmd = new DefaultParser().parse(options, Arrays.copyOfRange(args, 1, args.length));
+        } catch (ParseException e) {
+            System.err.println("Argument Parsing failed.  Reason: " + e.getMessage());
+            return;
+        }
+        if (cmd.getArgList().size() < 2 || cmd.hasOption("h")) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("scala-shade index [opts] <index file> <jar> [<jar>...]" +
+                    System.getProperty("line.separator") + "       scala-shade query <index file> <namespace> [<namespace>...]",
+                    header, options, footer);
+            return;
+        }
+
+        File indexFile = new File(cmd.getArgList().get(0));
+        List<String> rest = cmd.getArgList().subList(1, cmd.getArgList().size());
+        try {
+            if (args[0].equals("index")) {
+                List<File> jars = new ArrayList<File>();
+                for (String jar : rest)
+                    jars.add(new File(jar));
+                long start = System.nanoTime();
+                SigIndex.Built built = SigIndex.build(jars, indexFile,
+                        intOption(cmd, "t", Runtime.getRuntime().availableProcessors()), cmd.hasOption("v"));
+                System.err.println("Indexed " + built.classes + " classes with signatures from " + jars.size() +
+                        " jars in " + (System.nanoTime() - start) / 1000000 + "ms");
+                if (built.skipped > 0)
+                    System.err.println("Skipped " + built.skipped + " classes that could not be decoded" +
+                            (cmd.hasOption("v") ? "" : ", use -v to list them"));
+            } else {
+                SigIndex index = new SigIndex(indexFile);
+                try {
+                    for (String namespace : rest) {
+                        for (SigIndex.Match match : index.query(namespace))
+                            System.out.println(match);
+                    }
+                } finally {
+                    index.close();
+                }
+            }
+        } catch (CtxException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Parse a positive integer option
+     *
+     * @throws CtxException if the value is not a positive integer
+     */
+    private static int intOption(CommandLine cmd, String option, int defaultValue) {
+        String value = cmd.getOptionValue(option);
+        if (value == null)
+            return defaultValue;
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed > 0)
+                return parsed;
+        } catch (NumberFormatException e) {
+            // Fall through
+        }
+        throw new CtxException("Option " + option + " must be a positive integer, not: " + value);
+    }
+
+    /**
+     * Apply jar processing options
+     */
+    private static void configure(JarShade jarShade, EntryCompressor compressor, int threads, long maxInFlight,
+                                  long slowEntryMillis, PathFilter filter, boolean offHeap, boolean marked) {
+        jarShade.setCompression(compressor);
+        jarShade.setOffHeap(offHeap);
+        jarShade.setMarked(marked);
+        jarShade.setFilter(filter);
+        jarShade.setThreads(threads);
+        jarShade.setMaxInFlight(maxInFlight);
+        if (slowEntryMillis != Integer.MAX_VALUE)
+            jarShade.setSlowEntryThreshold(slowEntryMillis);
+    }
+
+    /**
+     * Open an output for a profile, an existing directory is filled with the entries otherwise a jar is written,
+     * to stdout for '-'
+     *
+     * @throws CtxException if the jar can't be created
+     */
+    private static EntrySink openSink(String out) {
+        if (out.equals("-"))
+            return new EntrySink.Zip(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024),
+                    "<stdout>");
+        File file = new File(out);
+        if (file.isDirectory())
+            return new EntrySink.Directory(file);
+        try {
+            return new EntrySink.Zip(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024),
+                    file.getAbsolutePath());
+        } catch (IOException e) {
+            throw new CtxException("Could not open jar for writing: " + file, e);
+        }
+    }
+
+    /**
+     * Write a jar to either the named file or stdout
+     */
+    private static void writeJar(JarShade jarShade, String out, OutputStream stdout,
+                                 RuleSet rules, boolean verbose) {
+        if (stdout != null) {
+            jarShade.writeTo(stdout, rules, verbose);
+        } else {
+            jarShade.writeTo(new File(out), rules, verbose);
+        }
+    }
+
+    /**
+     * Shade a class held in memory, writing to either the named file or stdout
+     */
+    private static void shadeClass(String in, byte[] bytes, String out, OutputStream stdout,
+                                   RuleSet rules, boolean verbose) throws IOException {
+        try {
+            JarShade jarShade = new JarShade(new EntrySource.SingleClass(in, bytes));
+            jarShade.setThreads(1);
+            OutputStream os = stdout != null ? stdout : new FileOutputStream(out);
+            jarShade.writeTo(new EntrySink.SingleFile(os, out), rules, verbose);
+        } catch (CtxException e) {
+            e.printStackTrace();
+        }
+    }
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed size direct ByteBuffer slabs for holding entry data off the Java heap. A {@link SpillBuffer} created
+ * with an arena takes slabs as it is written and hands them back when released, so after warming up the same slabs
+ * are reused entry after entry and the heap only holds references to them. This keeps the bytes of a large jar from
+ * being allocated, promoted and collected as they pass through.
+ * <p/>
+ * Direct memory is not reclaimed promptly by the collector so the number of free slabs kept is capped. The arena
+ * does not limit how many slabs are in use at once, callers bound that themselves as {@link JarShade} does with its
+ * {@link ByteBudget}.
+ */
+class OffHeapArena {
+    static final int SLAB_SIZE = 16 * 1024;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+    private final int maxFree;
+
+    /**
+     * Create an empty arena, slabs are allocated on demand
+     *
+     * @param maxPooled most bytes of free slabs to keep for reuse
+     */
+    OffHeapArena(long maxPooled) {
+        this.maxFree = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxPooled / SLAB_SIZE));
+    }
+
+    /**
+     * Take a slab, re-using a free one if there is one
+     *
+     * @return an empty slab of {@link #SLAB_SIZE} bytes
+     */
+    ByteBuffer allocate() {
+        ByteBuffer slab = free.poll();
+        if (slab != null)
+            freeCount.decrementAndGet();
+        else
+            slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+        int used = inUse.incrementAndGet();
+        int max;
+        while (used > (max = peak.get()) && !peak.compareAndSet(max, used)) {
+            // Retry
+        }
+        return slab;
+    }
+
+    /**
+     * Hand back a slab, it must not be used again by the caller
+     *
+     * @param slab the slab from {@link #allocate()}
+     */
+    void release(ByteBuffer slab) {
+        inUse.decrementAndGet();
+        if (freeCount.incrementAndGet() <= maxFree) {
+            // Through Buffer so the call also links on Java 8
+            ((Buffer) slab).clear();
+            free.offer(slab);
+        } else {
+            freeCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return bytes of slabs currently taken
+     */
+    long inUseBytes() {
+        return (long) inUse.get() * SLAB_SIZE;
+    }
+
+    /**
+     * @return the most bytes of slabs taken at once
+     */
+    long peakBytes() {
+        return (long) peak.get() * SLAB_SIZE;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Include & exclude glob rules on entry paths, deciding which entries are opened for processing. Entries that are
+ * not accepted are copied unchanged.
+ * <p/>
+ * Globs use '/' separated paths, '*' matches within a path component, '**' matches across components and '?'
+ * matches a single character other than '/'. A pattern ending in '/' matches everything below it. The rules are
+ * compiled into a trie keyed on the literal prefix of each pattern, up to its first wildcard, so a path is matched
+ * in a single walk over its bytes. Most patterns are a package prefix followed by '**', which is recorded as a flag
+ * on the trie node and needs no further matching.
+ */
+class PathFilter {
+
+    private final Trie includes = new Trie();
+    private final Trie excludes = new Trie();
+
+    /**
+     * Add an include rule, once any are added only paths matching one are accepted
+     *
+     * @param glob the pattern
+     * @return this filter
+     * @throws CtxException if the pattern is empty
+     */
+    PathFilter include(String glob) {
+        includes.add(compile(glob));
+        return this;
+    }
+
+    /**
+     * Add an exclude rule, paths matching one are not accepted even if included
+     *
+     * @param glob the pattern
+     * @return this filter
+     * @throws CtxException if the pattern is empty
+     */
+    PathFilter exclude(String glob) {
+        excludes.add(compile(glob));
+        return this;
+    }
+
+    /**
+     * @return true if no rules have been added, so everything is accepted
+     */
+    boolean acceptsAll() {
+        return includes.isEmpty() && excludes.isEmpty();
+    }
+
+    /**
+     * Test if an entry should be processed
+     *
+     * @param path the entry path
+     * @return true if it is included and not excluded
+     */
+    boolean accepts(String path) {
+        if (acceptsAll())
+            return true;
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        return accepts(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Test if an entry should be processed
+     *
+     * @param path   array holding the UTF-8 entry path
+     * @param offset start of the path in the array
+     * @param length length of the path
+     * @return true if it is included and not excluded
+     */
+    boolean accepts(byte[] path, int offset, int length) {
+        return (includes.isEmpty() || includes.matches(path, offset, offset + length)) &&
+                (excludes.isEmpty() || !excludes.matches(path, offset, offset + length));
+    }
+
+    /**
+     * @return the patterns as arguments, each include or exclude preceded by its option name
+     */
+    List<String> asArgs() {
+        List<String> args = new ArrayList<String>();
+        for (String glob : includes.globs) {
+            args.add("--include");
+            args.add(glob);
+        }
+        for (String glob : excludes.globs) {
+            args.add("--exclude");
+            args.add(glob);
+        }
+        return args;
+    }
+
+    private static byte[] compile(String glob) {
+        if (glob.isEmpty())
+            throw new CtxException("Empty path pattern");
+        if (glob.startsWith("/"))
+            glob = glob.substring(1);
+        if (glob.endsWith("/"))
+            glob = glob + "**";
+        return glob.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Trie of the literal prefixes of patterns, each node holds the patterns whose prefix ends there
+     */
+    private static class Trie {
+        private final Node root = new Node();
+        private final List<String> globs = new ArrayList<String>();
+
+        boolean isEmpty() {
+            return globs.isEmpty();
+        }
+
+        void add(byte[] glob) {
+            globs.add(new String(glob, StandardCharsets.UTF_8));
+            Node node = root;
+            int at = 0;
+            while (at < glob.length && !isWildcard(glob[at]))
+                node = node.child(glob[at++]);
+            byte[] rest = Arrays.copyOfRange(glob, at, glob.length);
+            if (rest.length == 2 && rest[0] == '*' && rest[1] == '*') {
+                node.matchAll = true;
+            } else {
+                node.rests = Arrays.copyOf(node.rests, node.rests.length + 1);
+                node.rests[node.rests.length - 1] = rest;
+            }
+        }
+
+        boolean matches(byte[] path, int at, int end) {
+            Node node = root;
+            while (true) {
+                if (node.matchAll)
+                    return true;
+                for (byte[] rest : node.rests) {
+                    if (glob(rest, 0, path, at, end))
+                        return true;
+                }
+                if (at == end)
+                    return false;
+                node = node.find(path[at++]);
+                if (node == null)
+                    return false;
+            }
+        }
+    }
+
+    private static class Node {
+        private static final Node[] NO_NODES = new Node[0];
+        private static final byte[][] NO_RESTS = new byte[0][];
+
+        private byte[] keys = new byte[0];
+        private Node[] children = NO_NODES;
+        boolean matchAll = false;
+        byte[][] rests = NO_RESTS;
+
+        Node find(byte key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == key)
+                    return children[i];
+            }
+            return null;
+        }
+
+        Node child(byte key) {
+            Node node = find(key);
+            if (node == null) {
+                node = new Node();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                keys[keys.length - 1] = key;
+                children = Arrays.copyOf(children, children.length + 1);
+                children[children.length - 1] = node;
+            }
+            return node;
+        }
+    }
+
+    private static boolean isWildcard(byte b) {
+        return b == '*' || b == '?';
+    }
+
+    /**
+     * Match the remainder of a pattern against the remainder of a path
+     */
+    private static boolean glob(byte[] pattern, int p, byte[] path, int at, int end) {
+        while (p < pattern.length) {
+            byte c = pattern[p];
+            if (c == '*') {
+                boolean any = p + 1 < pattern.length && pattern[p + 1] == '*';
+                p += any ? 2 : 1;
+                // '**/' may also match no directories at all
+                if (any && p < pattern.length && pattern[p] == '/' && glob(pattern, p + 1, path, at, end))
+                    return true;
+                for (int k = at; k <= end; k++) {
+                    if (glob(pattern, p, path, k, end))
+                        return true;
+                    if (k < end && !any && path[k] == '/')
+                        return false;
+                }
+                return false;
+            }
+            if (at == end)
+                return false;
+            if (c == '?' ? path[at] == '/' : path[at] != c)
+                return false;
+            p++;
+            at++;
+        }
+        return at == end;
+    }
+}
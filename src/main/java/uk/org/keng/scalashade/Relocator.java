@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.commons.Remapper;
+import org.objectweb.asm.commons.RemappingClassAdapter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Relocates class files and resource paths, the work normally done by a shading tool before ScalaShade is run.
+ * References to classes within a namespace being replaced are renamed in the byte code and entries below the
+ * namespace are moved. Where namespaces nest the longest match is used.
+ */
+class Relocator {
+    private static final String SERVICES = "META-INF/services/";
+
+    private final List<String[]> prefixes = new ArrayList<String[]>();
+    private final List<byte[]> patterns = new ArrayList<byte[]>();
+    private final List<int[]> skips = new ArrayList<int[]>();
+
+    /**
+     * Create for a set of rules
+     *
+     * @param rules the namespace replacements to apply
+     */
+    Relocator(RuleSet rules) {
+        for (Map.Entry<String, String> rule : rules.asMap().entrySet()) {
+            String from = rule.getKey().replace('.', '/');
+            prefixes.add(new String[]{from, rule.getValue().replace('.', '/')});
+            byte[] pattern = from.getBytes(StandardCharsets.UTF_8);
+            patterns.add(pattern);
+            skips.add(ScalaSigClass.skipTable(pattern));
+        }
+        Collections.sort(prefixes, new Comparator<String[]>() {
+            @Override
+            public int compare(String[] a, String[] b) {
+                return b[0].length() - a[0].length();
+            }
+        });
+    }
+
+    /**
+     * Map an internal class name or resource path
+     *
+     * @param name name using '/' separators
+     * @return the relocated name or name if not within a replaced namespace
+     */
+    String map(String name) {
+        for (String[] prefix : prefixes) {
+            String from = prefix[0];
+            if (name.startsWith(from) && (name.length() == from.length() || name.charAt(from.length()) == '/'))
+                return prefix[1] + name.substring(from.length());
+        }
+        return name;
+    }
+
+    /**
+     * Map a class name using '.' separators, as found in service files
+     *
+     * @param className the class name
+     * @return the relocated class name
+     */
+    String mapClassName(String className) {
+        return map(className.replace('.', '/')).replace('/', '.');
+    }
+
+    /**
+     * Map the path of a jar entry, service files are named after the service class so these are renamed as well
+     *
+     * @param path the entry path
+     * @return the relocated path
+     */
+    String mapPath(String path) {
+        if (path.startsWith(SERVICES) && path.length() > SERVICES.length())
+            return SERVICES + mapClassName(path.substring(SERVICES.length()));
+        return map(path);
+    }
+
+    /**
+     * @param path an entry path
+     * @return true if the entry lists service implementations
+     */
+    static boolean isServiceFile(String path) {
+        return path.startsWith(SERVICES) && path.length() > SERVICES.length() && !path.endsWith("/");
+    }
+
+    /**
+     * Relocate the class names listed in a service file
+     *
+     * @param contents the file contents
+     * @return the updated contents
+     */
+    String mapServices(String contents) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : contents.split("\r?\n")) {
+            String name = line;
+            int comment = name.indexOf('#');
+            if (comment != -1)
+                name = name.substring(0, comment);
+            name = name.trim();
+            sb.append(name.isEmpty() ? line : line.replace(name, mapClassName(name))).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Quick test to see if class bytes could refer to a replaced namespace
+     *
+     * @param bytes  array holding the class byte code
+     * @param length number of valid bytes in the array
+     * @return false if the class does not need relocating
+     */
+    boolean mayReference(byte[] bytes, int length) {
+        for (int i = 0; i < patterns.size(); i++) {
+            if (ScalaSigClass.contains(bytes, length, patterns.get(i), skips.get(i)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Rename references to replaced namespaces in a class. The namespace may only appear in the bytes in
+     * something other than a reference, such as a string constant, so whether anything was renamed is tracked.
+     *
+     * @param path   path of class, just for error reporting
+     * @param bytes  array holding the class byte code
+     * @param length number of valid bytes in the array
+     * @return the relocated class byte code, or null if the class does not refer to a replaced namespace
+     * @throws CtxException if the class can not be read
+     */
+    byte[] relocateClass(String path, byte[] bytes, int length) {
+        try {
+            ClassReader reader = new ClassReader(bytes, 0, length);
+            ClassWriter writer = new ClassWriter(0);
+            final boolean[] mapped = new boolean[1];
+
+            // The method remapper in this version of ASM requires expanded frames
+            reader.accept(new RemappingClassAdapter(writer, new Remapper() {
+                @Override
+                public String map(String typeName) {
+                    String mappedName = Relocator.this.map(typeName);
+                    if (!mappedName.equals(typeName))
+                        mapped[0] = true;
+                    return mappedName;
+                }
+            }), ClassReader.EXPAND_FRAMES);
+            return mapped[0] ? writer.toByteArray() : null;
+        } catch (RuntimeException e) {
+            throw new CtxException("Could not relocate class: " + path, e);
+        }
+    }
+}
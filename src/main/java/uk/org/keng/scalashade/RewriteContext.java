@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Reusable working buffers for rewriting classes, one of these should be used per thread. The buffers grow as
+ * needed and are reused between classes so that processing a class that does not need changing allocates little or
+ * nothing. Buffers that have grown very large are dropped by {@link #reset()} so one unusual class does not pin
+ * memory for the life of the thread.
+ */
+class RewriteContext {
+
+    /**
+     * Buffers above this size are not retained between classes
+     */
+    private static final int RETAIN_LIMIT = 1024 * 1024;
+
+    /**
+     * ByteArrayOutputStream with access to its buffer to avoid copying
+     */
+    static class Scratch extends ByteArrayOutputStream {
+        Scratch(int size) {
+            super(size);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    private byte[] entry = new byte[16 * 1024];
+    private byte[] decode = new byte[4 * 1024];
+    private byte[] groups = new byte[4 * 1024];
+    private char[] chars = new char[8 * 1024];
+    private Scratch table = new Scratch(4 * 1024);
+    private final EntryStats stats = new EntryStats();
+    private MessageDigest sha256 = null;
+
+    /**
+     * Read a stream into the entry buffer, the stream is not closed
+     *
+     * @param in the stream to read
+     * @return the number of bytes read, the bytes are in {@link #entryBuffer()}
+     * @throws IOException
+     */
+    int readEntry(InputStream in) throws IOException {
+        int count = 0;
+        int bytesRead;
+        while ((bytesRead = in.read(entry, count, entry.length - count)) != -1) {
+            count += bytesRead;
+            if (count == entry.length)
+                entry = grow(entry, count + 1);
+        }
+        return count;
+    }
+
+    /**
+     * @return the buffer filled by {@link #readEntry(InputStream)}
+     */
+    byte[] entryBuffer() {
+        return entry;
+    }
+
+    /**
+     * Get buffer for decoding a signature
+     *
+     * @param size minimum size needed
+     * @return the buffer
+     */
+    byte[] decodeBuffer(int size) {
+        if (decode.length < size)
+            decode = new byte[Math.max(size, decode.length * 2)];
+        return decode;
+    }
+
+    /**
+     * Get buffer for writing a signature table, this is emptied before being returned
+     *
+     * @return the buffer
+     */
+    Scratch tableBuffer() {
+        table.reset();
+        return table;
+    }
+
+    /**
+     * Encode signature bytes as a string using the reusable buffers
+     *
+     * @param raw    the signature bytes
+     * @param length number of bytes to encode
+     * @return the encoded string
+     */
+    String encode(byte[] raw, int length) {
+        int encodedLength = Encoding.encodeLength(length);
+        if (groups.length < encodedLength)
+            groups = new byte[Math.max(encodedLength, groups.length * 2)];
+        if (chars.length < encodedLength * 2)
+            chars = new char[Math.max(encodedLength * 2, chars.length * 2)];
+        return Encoding.encode(raw, length, groups, chars);
+    }
+
+    /**
+     * Get the stats object, this is reused for each class so call {@link EntryStats#begin(String, String)} to start
+     * measuring a new one
+     *
+     * @return the stats
+     */
+    EntryStats stats() {
+        return stats;
+    }
+
+    /**
+     * @return a reset SHA-256 digest, for comparing entry contents
+     */
+    MessageDigest sha256() {
+        if (sha256 == null) {
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new CtxException("SHA-256 is not available", e);
+            }
+        }
+        sha256.reset();
+        return sha256;
+    }
+
+    /**
+     * Drop any buffers that have grown too large to keep, call between classes
+     */
+    void reset() {
+        if (entry.length > RETAIN_LIMIT)
+            entry = new byte[16 * 1024];
+        if (decode.length > RETAIN_LIMIT)
+            decode = new byte[4 * 1024];
+        if (groups.length > RETAIN_LIMIT)
+            groups = new byte[4 * 1024];
+        if (chars.length > RETAIN_LIMIT)
+            chars = new char[8 * 1024];
+        if (table.buffer().length > RETAIN_LIMIT)
+            table = new Scratch(4 * 1024);
+    }
+
+    private static byte[] grow(byte[] buffer, int size) {
+        byte[] grown = new byte[Math.max(size, buffer.length * 2)];
+        System.arraycopy(buffer, 0, grown, 0, buffer.length);
+        return grown;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The namespace replacements to apply to signatures. Each rule replaces an absolute namespace with another, see
+ * {@link Table#replace(Map)} for how they are matched.
+ */
+class RuleSet {
+    private final Map<String, String> rules = new LinkedHashMap<String, String>();
+    private volatile SigPrefilter prefilter = null;
+
+    /**
+     * Create a rule set containing a single rule
+     *
+     * @param from Absolute namespace to change
+     * @param to   Absolute namespace to use instead
+     * @return the rule set
+     * @throws CtxException if either namespace is malformed
+     */
+    static RuleSet of(String from, String to) {
+        return new RuleSet().add(from, to);
+    }
+
+    /**
+     * Add a rule
+     *
+     * @param from Absolute namespace to change
+     * @param to   Absolute namespace to use instead
+     * @return this rule set
+     * @throws CtxException if either namespace is malformed or from already has a rule
+     */
+    RuleSet add(String from, String to) {
+        checkNamespace(from);
+        checkNamespace(to);
+        if (rules.containsKey(from))
+            throw new CtxException("Namespace has more than one replacement: " + from);
+        rules.put(from, to);
+        prefilter = null;
+        return this;
+    }
+
+    /**
+     * @return map of namespaces to replace to their replacements, in the order added
+     */
+    Map<String, String> asMap() {
+        return Collections.unmodifiableMap(rules);
+    }
+
+    /**
+     * @return filter for rejecting signatures that no rule can match without decoding them
+     */
+    SigPrefilter prefilter() {
+        SigPrefilter filter = prefilter;
+        if (filter == null) {
+            filter = new SigPrefilter(rules.keySet());
+            prefilter = filter;
+        }
+        return filter;
+    }
+
+    /**
+     * Apply the rules to a signature
+     *
+     * @param sig the signature to update
+     * @return the number of namespaces that were updated
+     */
+    int apply(ScalaSig sig) {
+        return sig.replace(rules);
+    }
+
+    private static void checkNamespace(String namespace) {
+        if (namespace.isEmpty() || namespace.startsWith(".") || namespace.endsWith(".") || namespace.contains(".."))
+            throw new CtxException("Invalid namespace: '" + namespace + "'");
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> rule : rules.entrySet()) {
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(rule.getKey()).append(" -> ").append(rule.getValue());
+        }
+        return sb.toString();
+    }
+}
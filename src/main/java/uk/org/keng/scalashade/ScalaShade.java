@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * Entry point for using ScalaShade from other tools, such as build plugins. Add the namespace relocations and then
+ * shade classes or jars with them. Failures are reported with a {@link CtxException}.
+ */
+public class ScalaShade {
+    private final RuleSet rules = new RuleSet();
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Add a namespace relocation
+     *
+     * @param from Absolute namespace to change
+     * @param to   Absolute namespace to use instead
+     * @return this
+     * @throws CtxException if either namespace is malformed or from already has a relocation
+     */
+    public ScalaShade relocate(String from, String to) {
+        rules.add(from, to);
+        return this;
+    }
+
+    /**
+     * Set the number of worker threads used when shading a jar, defaults to the number of processors
+     *
+     * @param threads number of threads, must be at least 1
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Shade the @ScalaSignature of a class
+     *
+     * @param name  name of the class, just for error reporting
+     * @param bytes the class byte code
+     * @return the updated byte code, or bytes if nothing needed changing
+     * @throws CtxException
+     */
+    public byte[] shadeClass(String name, byte[] bytes) {
+        if (!ScalaSigClass.mayHaveSignature(bytes, bytes.length))
+            return bytes;
+        RewriteContext ctx = new RewriteContext();
+        ScalaSigClass sigClass = new ScalaSigClass(name, bytes, bytes.length, ctx, ctx.stats(),
+                rules.prefilter());
+        ScalaSig sig = sigClass.getSig();
+        if (sig != null && rules.apply(sig) > 0)
+            return sigClass.getBytes();
+        return bytes;
+    }
+
+    /**
+     * Shade all classes in a jar, including any nested jars
+     *
+     * @param in  the jar to read
+     * @param out location of new jar, will be created/overwritten as needed
+     * @throws CtxException
+     */
+    public void shadeJar(File in, File out) {
+        JarShade jarShade = new JarShade(in);
+        jarShade.setThreads(threads);
+        jarShade.writeTo(out, rules, false);
+    }
+
+    /**
+     * Shade a set of entries held in memory, such as the contents of a jar being assembled by another tool. Classes
+     * and nested jars are processed as they would be in a jar.
+     *
+     * @param entries map of entry name to contents, names ending in '/' are directories
+     * @return map of entry name to the updated contents, in the same order, unchanged entries keep their arrays
+     * @throws CtxException
+     */
+    public Map<String, byte[]> shadeEntries(Map<String, byte[]> entries) {
+        JarShade jarShade = new JarShade(new EntrySource.Memory(entries));
+        jarShade.setThreads(threads);
+        EntrySink.Memory sink = new EntrySink.Memory();
+        jarShade.writeTo(sink, rules, false);
+        return sink.entries();
+    }
+}
@@ -89,6 +89,37 @@ class Table {
         }
     }
 
+    /**
+     * @return the number of entries in the table
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Copy the table so it can be changed without affecting this one. Only ExtModClassRef entries are updated in
+     * place so only they are copied, the other entries are shared.
+     *
+     * @return the copy
+     */
+    Table copy() {
+        Table copy = new Table();
+        for (TableEntry e : entries) {
+            int index = copy.entries.size();
+            if (e instanceof ExtModClassRefEntry) {
+                ExtModClassRefEntry ref = (ExtModClassRefEntry) e;
+                ExtModClassRefEntry refCopy = new ExtModClassRefEntry(ref.nameRef(), ref.symbolRef());
+                copy.entries.add(refCopy);
+                copy.extModClassRefEntriesMap.put(index, refCopy);
+            } else {
+                copy.entries.add(e);
+                if (e instanceof TermNameEntry)
+                    copy.termNameMap.put(index, (TermNameEntry) e);
+            }
+        }
+        return copy;
+    }
+
     /**
      * Write the table as a byte stream
      *
@@ -110,24 +141,50 @@ class Table {
      * @return the number of namespaces that were updated
      */
     int replace(String replace, String with) {
+        return replace(Collections.singletonMap(replace, with));
+    }
+
+    /**
+     * Replace namespaces in the table with other namespaces. All matches are located before any are updated so
+     * the replacements do not affect each other.
+     *
+     * @param replacements map of namespace to replace to the namespace to use instead
+     * @return the number of namespaces that were updated
+     */
+    int replace(Map<String, String> replacements) {
 
-        // Locate extModClassRef entries that are exact match for namespace
+        // Locate extModClassRef entries that are exact match for a namespace
         ArrayList<Integer> matched = new ArrayList<Integer>();
+        ArrayList<String> with = new ArrayList<String>();
         for (Map.Entry<Integer, ExtModClassRefEntry> entry : extModClassRefEntriesMap.entrySet()) {
             ExtModClassRefEntry e = entry.getValue();
             String ref = resolveClassRef(e);
-            if (ref != null && ref.equals(replace)) {
+            if (ref != null && replacements.containsKey(ref)) {
                 matched.add(entry.getKey());
+                with.add(replacements.get(ref));
             }
         }
 
         // Correct the entry
-        for (int index : matched) {
-            updateClassRef(extModClassRefEntriesMap.get(index), with.split("\\."));
+        for (int i = 0; i < matched.size(); i++) {
+            updateClassRef(extModClassRefEntriesMap.get(matched.get(i)), with.get(i).split("\\."));
         }
         return matched.size();
     }
 
+    /**
+     * @return the namespaces of all the ExtModClassRef entries in the table
+     */
+    Set<String> namespaces() {
+        Set<String> namespaces = new HashSet<String>();
+        for (ExtModClassRefEntry e : extModClassRefEntriesMap.values()) {
+            String ref = resolveClassRef(e);
+            if (ref != null)
+                namespaces.add(ref);
+        }
+        return namespaces;
+    }
+
     /**
      * Construct full namespace for an ExtModClassRef entry
      *
@@ -385,7 +442,19 @@ class ScalaSig {
      * @throws CtxException
      */
     static ScalaSig parse(byte[] in) throws CtxException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(in);
+        return parse(in, in.length);
+    }
+
+    /**
+     * Parse a signature from the start of a byte array
+     *
+     * @param in     input bytes to parse
+     * @param length number of valid bytes in the array
+     * @return the decoded signature data
+     * @throws CtxException
+     */
+    static ScalaSig parse(byte[] in, int length) throws CtxException {
+        ByteArrayInputStream bis = new ByteArrayInputStream(in, 0, length);
 
         // Pull version info & check OK
         int major = Nat.read(bis);
@@ -430,17 +499,58 @@ class ScalaSig {
         return _table.replace(replace, with);
     }
 
+    /**
+     * Replace namespaces in the table with other namespaces
+     *
+     * @param replacements map of namespace to replace to the namespace to use instead
+     * @return the number of namespaces that were updated
+     */
+    int replace(Map<String, String> replacements) {
+        return _table.replace(replacements);
+    }
+
+    /**
+     * @return the namespaces referenced from the signature
+     */
+    Set<String> namespaces() {
+        return _table.namespaces();
+    }
+
+    /**
+     * Copy the signature, so different replacements can be applied to each copy without parsing it again
+     *
+     * @return the copy
+     */
+    ScalaSig copy() {
+        return new ScalaSig(_majorVersion, _minorVersion, _table.copy());
+    }
+
+    /**
+     * @return the number of entries in the signature table
+     */
+    int tableSize() {
+        return _table.size();
+    }
+
     /**
      * Get a byte array containing the encoded signature
      * @return the byte array
      */
     byte[] asBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Write the signature bytes to a stream
+     * @param out the stream to write to
+     */
+    void write(ByteArrayOutputStream out) {
         try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
             Nat.write(_majorVersion, out);
             Nat.write(_minorVersion, out);
             _table.write(out);
-            return out.toByteArray();
         } catch (IOException e) {
             throw new CtxException("Unexpected error converting signature to byte array", e);
         }
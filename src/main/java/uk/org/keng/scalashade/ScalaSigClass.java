@@ -16,24 +16,32 @@
 
 package uk.org.keng.scalashade;
 
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassWriter;
-import org.objectweb.asm.tree.AnnotationNode;
-import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.*;
 
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Helper for classes that may contain a @ScalaSignature annotation
+ * <p/>
+ * The class is only scanned for the annotation, the rest of the class is not decoded unless the signature is
+ * changed, when {@link #getBytes()} passes the class through ASM swapping in the new annotation value.
  */
 class ScalaSigClass {
 
-    private final ClassNode _clazz = new ClassNode();
-    private int sigAnnotation = -1;
+    private static final String SIGNATURE_DESC = "Lscala/reflect/ScalaSignature;";
+    private static final byte[] SIGNATURE_BYTES = SIGNATURE_DESC.getBytes(StandardCharsets.UTF_8);
+    private static final int[] SIGNATURE_SKIP = skipTable(SIGNATURE_BYTES);
+
+    private final String path;
+    private final RewriteContext ctx;
+    private final EntryStats stats;
+    private final SigPrefilter filter;
+    private ClassReader reader = null;
+    private String sigString = null;
     private ScalaSig sig = null;
 
     /**
@@ -42,13 +50,20 @@ class ScalaSigClass {
      * @param path the class file
      */
     public ScalaSigClass(String path) {
-        FileInputStream in;
+        this.path = path;
+        this.ctx = new RewriteContext();
+        this.stats = ctx.stats();
+        this.filter = null;
         try {
-            in = new FileInputStream(path);
+            FileInputStream in = new FileInputStream(path);
+            try {
+                load(ctx.entryBuffer(), ctx.readEntry(in));
+            } finally {
+                in.close();
+            }
         } catch (IOException e) {
             throw new CtxException("Could not open/read file: " + path);
         }
-        load(path, in);
     }
 
     /**
@@ -58,51 +73,129 @@ class ScalaSigClass {
      * @param in   stream of class byte code
      */
     public ScalaSigClass(String path, InputStream in) {
-        load(path, in);
+        this.path = path;
+        this.ctx = new RewriteContext();
+        this.stats = ctx.stats();
+        this.filter = null;
+        try {
+            load(ctx.entryBuffer(), ctx.readEntry(in));
+        } catch (IOException e) {
+            throw new CtxException("Could not read file: " + path);
+        }
+    }
+
+    /**
+     * Create from class bytes using reusable working buffers. The bytes must not be changed until this object is
+     * finished with, and the context should not be used for another class until then either.
+     *
+     * @param path   path of class, just for error reporting
+     * @param bytes  array holding the class byte code
+     * @param length number of valid bytes in the array
+     * @param ctx    working buffers for this thread
+     * @param stats  receives measurements
+     * @param filter signatures it rejects are not decoded, {@link #getSig()} returns null for them, may be null
+     */
+    public ScalaSigClass(String path, byte[] bytes, int length, RewriteContext ctx, EntryStats stats,
+                         SigPrefilter filter) {
+        this.path = path;
+        this.ctx = ctx;
+        this.stats = stats;
+        this.filter = filter;
+        load(bytes, length);
+    }
+
+    /**
+     * Quick test to see if class bytes could contain a @ScalaSignature annotation, by searching for the
+     * annotation type name in the raw bytes. Classes without it do not need to be loaded with ASM.
+     *
+     * @param bytes  array holding the class byte code
+     * @param length number of valid bytes in the array
+     * @return false if the class can not have a @ScalaSignature
+     */
+    static boolean mayHaveSignature(byte[] bytes, int length) {
+        return contains(bytes, length, SIGNATURE_BYTES, SIGNATURE_SKIP);
+    }
+
+    /**
+     * Build the table of how far to move along for each byte value when searching with {@link #contains}
+     *
+     * @param pattern the bytes to search for
+     * @return the skip for each byte value
+     */
+    static int[] skipTable(byte[] pattern) {
+        int[] skip = new int[256];
+        for (int i = 0; i < skip.length; i++)
+            skip[i] = Math.max(pattern.length, 1);
+        for (int i = 0; i < pattern.length - 1; i++)
+            skip[pattern[i] & 0xff] = pattern.length - 1 - i;
+        return skip;
+    }
+
+    /**
+     * Search for a byte pattern
+     *
+     * @param bytes   array to search
+     * @param length  number of valid bytes in the array
+     * @param pattern the bytes to search for
+     * @param skip    table for the pattern from {@link #skipTable}
+     * @return true if the pattern was found
+     */
+    static boolean contains(byte[] bytes, int length, byte[] pattern, int[] skip) {
+        if (pattern.length == 0)
+            return true;
+        // Horspool search, most positions are skipped by a whole pattern length
+        int last = pattern.length - 1;
+        int i = last;
+        while (i < length) {
+            int j = last;
+            int k = i;
+            while (bytes[k] == pattern[j]) {
+                if (j == 0)
+                    return true;
+                j--;
+                k--;
+            }
+            i += skip[bytes[i] & 0xff];
+        }
+        return false;
     }
 
     /**
      * Private constructor, loads the class & parses @ScalaSignature if present
      *
-     * @param path path of class, just for error reporting
-     * @param in   stream of class byte code
+     * @param bytes  array holding the class byte code
+     * @param length number of valid bytes in the array
      */
-    private void load(String path, InputStream in) {
+    private void load(byte[] bytes, int length) {
 
-        // Load class into ASM
+        // Scan class with ASM for the annotation, skipping everything else
+        long start = System.nanoTime();
         try {
-            ClassReader cr = new ClassReader(in);
-            cr.accept(_clazz, 0);
-        } catch (IOException e) {
-            throw new CtxException("Could not read file: " + path);
+            reader = new ClassReader(bytes, 0, length);
+            reader.accept(new SignatureFinder(), ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        } catch (RuntimeException e) {
+            if (e instanceof CtxException)
+                throw e;
+            throw new CtxException("Could not read file: " + path, e);
         }
+        stats.readTime = System.nanoTime() - start;
 
-        // Extract ScalaSignature annotation bytes & check all looks OK
-        int at = 0;
-        if (_clazz.visibleAnnotations != null) {
-            //noinspection unchecked
-            for (AnnotationNode an : visibleAnnotations(_clazz)) {
-                if (an.desc.equals("Lscala/reflect/ScalaSignature;")) {
-                    if (sigAnnotation != -1)
-                        throw new CtxException("Multiple ScalaSignature annotations found in: " + path);
-                    if (an.values.size() != 2)
-                        throw new CtxException("ScalaSignature has wrong number of values in: " + path);
-                    if (!(an.values.get(0) instanceof String))
-                        throw new CtxException("ScalaSignature has wrong type for value 0 in: " + path);
-                    if (!(an.values.get(1) instanceof String))
-                        throw new CtxException("ScalaSignature has wrong type for value 1 in: " + path);
-                    if (!an.values.get(0).equals("bytes"))
-                        throw new CtxException("ScalaSignature has wrong first value in" + path);
-                    String sigString = (String) an.values.get(1);
-
-                    byte[] sigBytes = Encoding.decode(sigString);
-                    if (sigBytes == null)
-                        throw new CtxException("ScalaSignature could not be decoded in" + path);
-                    sig = ScalaSig.parse(sigBytes);
-                    sigAnnotation = at;
-                }
-                at++;
-            }
+        // Decode & parse the signature, unless it can't contain anything we would change
+        if (sigString != null && filter != null && !filter.mayMatch(sigString)) {
+            stats.hasSignature = true;
+        } else if (sigString != null) {
+            start = System.nanoTime();
+            byte[] sigBytes = ctx.decodeBuffer(sigString.length());
+            int sigLength = Encoding.decode(sigString, sigBytes);
+            if (sigLength == -1)
+                throw new CtxException("ScalaSignature could not be decoded in" + path);
+            long decoded = System.nanoTime();
+            sig = ScalaSig.parse(sigBytes, sigLength);
+            stats.decodeTime = decoded - start;
+            stats.parseTime = System.nanoTime() - decoded;
+            stats.hasSignature = true;
+            stats.signatureSize = sigLength;
+            stats.signatureEntries = sig.tableSize();
         }
     }
 
@@ -124,8 +217,11 @@ class ScalaSigClass {
     public void writeTo(String path) throws CtxException {
         try {
             FileOutputStream os = new FileOutputStream(path);
-            os.write(getBytes());
-            os.close();
+            try {
+                os.write(getBytes());
+            } finally {
+                os.close();
+            }
         } catch (IOException ex) {
             throw new CtxException("Could not open/read file: " + path);
         }
@@ -137,19 +233,108 @@ class ScalaSigClass {
      * @return the (possibly updated) class byte code
      */
     public byte[] getBytes() {
-        // Update annotation
-        if (sigAnnotation != -1) {
-            ( visibleAnnotations(_clazz).get(sigAnnotation)).values.set(1, Encoding.encode(sig.asBytes()));
+        return getBytes(sig);
+    }
+
+    /**
+     * Get class bytes with a different signature, such as a differently updated copy of {@link #getSig()}
+     *
+     * @param sig the signature to use, or null to keep the existing one
+     * @return the class byte code with the signature
+     */
+    byte[] getBytes(ScalaSig sig) {
+        // Encode updated signature
+        long start = System.nanoTime();
+        String encoded = null;
+        if (sig != null) {
+            RewriteContext.Scratch table = ctx.tableBuffer();
+            sig.write(table);
+            encoded = ctx.encode(table.buffer(), table.size());
         }
 
-        // Convert to byte code
+        // Copy class swapping in the new annotation value, the constant pool is rebuilt so the old value is dropped
         ClassWriter cw = new ClassWriter(0);
-        _clazz.accept(cw);
-        return cw.toByteArray();
+        reader.accept(new SignatureReplacer(cw, encoded), 0);
+        byte[] bytes = cw.toByteArray();
+        stats.encodeTime += System.nanoTime() - start;
+        return bytes;
+    }
+
+    /**
+     * Locates the @ScalaSignature annotation and checks all looks OK
+     */
+    private class SignatureFinder extends ClassVisitor {
+        SignatureFinder() {
+            super(Opcodes.ASM5);
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+            if (!visible || !desc.equals(SIGNATURE_DESC))
+                return null;
+            if (sigString != null)
+                throw new CtxException("Multiple ScalaSignature annotations found in: " + path);
+
+            return new AnnotationVisitor(Opcodes.ASM5) {
+                private int values = 0;
+
+                @Override
+                public void visit(String name, Object value) {
+                    if (values++ != 0)
+                        throw new CtxException("ScalaSignature has wrong number of values in: " + path);
+                    if (!(value instanceof String))
+                        throw new CtxException("ScalaSignature has wrong type for value 1 in: " + path);
+                    if (!"bytes".equals(name))
+                        throw new CtxException("ScalaSignature has wrong first value in" + path);
+                    sigString = (String) value;
+                }
+
+                @Override
+                public void visitEnum(String name, String desc, String value) {
+                    throw new CtxException("ScalaSignature has wrong type for value 1 in: " + path);
+                }
+
+                @Override
+                public AnnotationVisitor visitAnnotation(String name, String desc) {
+                    throw new CtxException("ScalaSignature has wrong type for value 1 in: " + path);
+                }
+
+                @Override
+                public AnnotationVisitor visitArray(String name) {
+                    throw new CtxException("ScalaSignature has wrong type for value 1 in: " + path);
+                }
+
+                @Override
+                public void visitEnd() {
+                    if (values != 1)
+                        throw new CtxException("ScalaSignature has wrong number of values in: " + path);
+                }
+            };
+        }
     }
 
-    @SuppressWarnings("Unchecked")
-    List<AnnotationNode> visibleAnnotations(ClassNode clazz) {
-        return (List<AnnotationNode>)clazz.visibleAnnotations;
+    /**
+     * Passes a class through replacing the value of the @ScalaSignature annotation
+     */
+    private static class SignatureReplacer extends ClassVisitor {
+        private final String encoded;
+
+        SignatureReplacer(ClassVisitor cv, String encoded) {
+            super(Opcodes.ASM5, cv);
+            this.encoded = encoded;
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+            AnnotationVisitor av = super.visitAnnotation(desc, visible);
+            if (encoded == null || !visible || !desc.equals(SIGNATURE_DESC))
+                return av;
+            return new AnnotationVisitor(Opcodes.ASM5, av) {
+                @Override
+                public void visit(String name, Object value) {
+                    super.visit(name, encoded);
+                }
+            };
+        }
     }
 }
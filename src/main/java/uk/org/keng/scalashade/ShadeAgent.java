@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.lang.instrument.Instrumentation;
+
+/**
+ * Java agent that corrects @ScalaSignature annotations as classes are loaded, for jars that can't be rewritten
+ * ahead of time. The agent options are a comma separated list of from=to namespace relocations, optionally
+ * followed by 'verbose' to log rewritten classes and a summary of the time spent at exit.
+ * <p/>
+ * java -javaagent:scalashade.jar=org.apache=shaded.org.apache,verbose -jar app.jar
+ */
+public class ShadeAgent {
+
+    /**
+     * Entry point when started with -javaagent
+     *
+     * @param args the agent options
+     * @param inst instrumentation to register with
+     * @throws CtxException if the options are invalid
+     */
+    public static void premain(String args, Instrumentation inst) {
+        install(args, inst);
+    }
+
+    /**
+     * Entry point when attached to a running JVM, only classes loaded after this are corrected
+     *
+     * @param args the agent options
+     * @param inst instrumentation to register with
+     * @throws CtxException if the options are invalid
+     */
+    public static void agentmain(String args, Instrumentation inst) {
+        install(args, inst);
+    }
+
+    private static void install(String args, Instrumentation inst) {
+        RuleSet rules = new RuleSet();
+        boolean verbose = false;
+        if (args != null) {
+            for (String option : args.split(",")) {
+                option = option.trim();
+                int split = option.indexOf('=');
+                if (option.equals("verbose"))
+                    verbose = true;
+                else if (split != -1)
+                    rules.add(option.substring(0, split).trim(), option.substring(split + 1).trim());
+                else if (!option.isEmpty())
+                    throw new CtxException("ScalaShade agent option not understood: " + option);
+            }
+        }
+        if (rules.asMap().isEmpty())
+            throw new CtxException("ScalaShade agent needs at least one from=to namespace relocation");
+
+        final ShadeTransformer transformer = new ShadeTransformer(rules, verbose);
+        inst.addTransformer(transformer);
+        if (verbose) {
+            System.err.println("ScalaShade agent relocating " + rules);
+            Runtime.getRuntime().addShutdownHook(new Thread("scalashade-agent-summary") {
+                @Override
+                public void run() {
+                    System.err.println("ScalaShade agent: " + transformer.summary());
+                }
+            });
+        }
+    }
+}
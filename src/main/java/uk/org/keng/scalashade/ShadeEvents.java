@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import jdk.jfr.*;
+
+/**
+ * Java Flight Recorder events for profiling shading with JDK Mission Control. Events are only used if the JVM
+ * supports JFR, see {@link #AVAILABLE}, stack traces are disabled by default as they add to the cost of each event.
+ */
+class ShadeEvents {
+
+    /**
+     * True if the JVM provides the JFR event API
+     */
+    static final boolean AVAILABLE = isAvailable();
+
+    /**
+     * Test if events may be recorded. Creating the first event initialises much of JFR, which costs more than
+     * shading a small jar, so events are only created once the recorder is running, either from the command line
+     * or by a tool attaching.
+     *
+     * @return true if events should be created
+     */
+    static boolean recording() {
+        return AVAILABLE && FlightRecorder.isInitialized();
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+}
+
+/**
+ * Event recorded for each jar entry processed
+ */
+@Name("uk.org.keng.scalashade.Entry")
+@Label("Shade Entry")
+@Category("ScalaShade")
+@Description("Processing of a single jar entry")
+@StackTrace(false)
+class EntryEvent extends Event {
+    @Label("Jar")
+    String jar;
+
+    @Label("Entry")
+    String name;
+
+    @Label("Uncompressed Size")
+    @DataAmount
+    long uncompressedSize;
+
+    @Label("Compressed Size")
+    @DataAmount
+    long compressedSize;
+
+    @Label("Has Signature")
+    boolean hasSignature;
+
+    @Label("Signature Table Size")
+    @Description("Number of entries in the signature table")
+    int signatureEntries;
+
+    @Label("Signature Size")
+    @DataAmount
+    int signatureSize;
+
+    @Label("Replacements")
+    int replacements;
+
+    @Label("Class Read")
+    @Timespan
+    long readTime;
+
+    @Label("Signature Decode")
+    @Timespan
+    long decodeTime;
+
+    @Label("Signature Parse")
+    @Timespan
+    long parseTime;
+
+    @Label("Replace")
+    @Timespan
+    long replaceTime;
+
+    @Label("Encode & Class Write")
+    @Timespan
+    long encodeTime;
+
+    @Label("Compress")
+    @Timespan
+    long compressTime;
+}
+
+/**
+ * Event recorded for each jar written
+ */
+@Name("uk.org.keng.scalashade.Jar")
+@Label("Shade Jar")
+@Category("ScalaShade")
+@Description("Processing of a whole jar")
+@StackTrace(false)
+class JarEvent extends Event {
+    @Label("Input")
+    String input;
+
+    @Label("Output")
+    String output;
+
+    @Label("Entries")
+    int entries;
+
+    @Label("Modified")
+    int modified;
+
+    @Label("Peak In-Flight")
+    @DataAmount
+    long peakInFlight;
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Record of how a jar was shaded, written as a META-INF entry of the jars {@link JarShade} produces so that running
+ * the same shading again can be skipped. The marker holds a hash of the rules & options applied, a digest of the
+ * input jars and a digest of the entries written.
+ * <p/>
+ * Digests are taken over the name, CRC & size of each entry as held in the central directory, so checking a jar
+ * only needs its central directory and not its entry data. A marker is only trusted if the digest of the entries
+ * still matches, a jar that was changed after being written is shaded again as normal.
+ */
+class ShadeMarker {
+    static final String NAME = "META-INF/scalashade.marker";
+
+    /**
+     * Bumped when a change to the tool would shade the same input differently
+     */
+    private static final int VERSION = 2;
+
+    private static final String RULES_HASH = "Rules-Hash";
+    private static final String INPUT_DIGEST = "Input-Digest";
+    private static final String ENTRIES_DIGEST = "Entries-Digest";
+
+    final String rulesHash;
+    final String inputDigest;
+    final String entriesDigest;
+
+    /**
+     * @param rulesHash     hash of the rules applied, see {@link #rulesHash}
+     * @param inputDigest   digest of the input jars, null if the input was not jar files
+     * @param entriesDigest digest of the entries written, other than the marker
+     */
+    ShadeMarker(String rulesHash, String inputDigest, String entriesDigest) {
+        this.rulesHash = rulesHash;
+        this.inputDigest = inputDigest;
+        this.entriesDigest = entriesDigest;
+    }
+
+    /**
+     * Hash the rules & options used to shade, anything that changes which entries are written or how
+     *
+     * @param rules      the namespace replacements
+     * @param filter     the entry path filter
+     * @param merger     the merger when merging & relocating, null if only signatures are updated
+     * @param compressor how entries are compressed
+     * @return the hash in hex
+     */
+    static String rulesHash(RuleSet rules, PathFilter filter, EntryMerger merger, EntryCompressor compressor) {
+        MessageDigest md = sha256();
+        update(md, Integer.toString(VERSION));
+        update(md, merger != null ? "merge " + merger.getPolicy() : "shade");
+        update(md, compressor.asOption());
+        return rulesHash(md, rules, filter);
+    }
+
+    /**
+     * Hash the rules & filter used to mirror a class directory, see {@link WatchShade}
+     *
+     * @param rules  the namespace replacements
+     * @param filter the path filter
+     * @return the hash in hex
+     */
+    static String rulesHash(RuleSet rules, PathFilter filter) {
+        MessageDigest md = sha256();
+        update(md, Integer.toString(VERSION));
+        update(md, "mirror");
+        return rulesHash(md, rules, filter);
+    }
+
+    private static String rulesHash(MessageDigest md, RuleSet rules, PathFilter filter) {
+        for (Map.Entry<String, String> rule : rules.asMap().entrySet()) {
+            update(md, rule.getKey());
+            update(md, rule.getValue());
+        }
+        for (String arg : filter.asArgs())
+            update(md, arg);
+        return hex(md.digest());
+    }
+
+    /**
+     * Digest the entries of jars from their central directories, any markers are not included
+     *
+     * @param zips the jars, in order
+     * @return the digest in hex
+     */
+    static String digest(ZipFile... zips) {
+        Digest digest = new Digest();
+        for (ZipFile zip : zips) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.getName().equals(NAME))
+                    digest.add(entry.getName(), entry.getCrc(), entry.getSize());
+            }
+        }
+        return digest.finish();
+    }
+
+    /**
+     * Read the marker of a jar
+     *
+     * @param zip the jar
+     * @return the marker, or null if there isn't one or it can't be read
+     */
+    static ShadeMarker read(ZipFile zip) {
+        ZipEntry entry = zip.getEntry(NAME);
+        if (entry == null)
+            return null;
+        String rulesHash = null;
+        String inputDigest = null;
+        String entriesDigest = null;
+        try {
+            InputStream in = zip.getInputStream(entry);
+            try {
+                for (String line : new String(FileUtil.readFully(in), StandardCharsets.UTF_8).split("\n")) {
+                    int colon = line.indexOf(": ");
+                    if (colon == -1)
+                        continue;
+                    String key = line.substring(0, colon);
+                    String value = line.substring(colon + 2).trim();
+                    if (key.equals(RULES_HASH))
+                        rulesHash = value;
+                    else if (key.equals(INPUT_DIGEST))
+                        inputDigest = value;
+                    else if (key.equals(ENTRIES_DIGEST))
+                        entriesDigest = value;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        if (rulesHash == null || entriesDigest == null)
+            return null;
+        return new ShadeMarker(rulesHash, inputDigest, entriesDigest);
+    }
+
+    /**
+     * Read the marker of a jar on disk
+     *
+     * @param jar the jar
+     * @return the marker, or null if there isn't one or the jar can't be read
+     */
+    static ShadeMarker read(File jar) {
+        if (!jar.isFile())
+            return null;
+        try {
+            ZipFile zip = new ZipFile(jar);
+            try {
+                ShadeMarker marker = read(zip);
+                return marker != null && marker.matches(zip) ? marker : null;
+            } finally {
+                zip.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Test if the entries of a jar are still those the marker was written with
+     *
+     * @param zip the jar holding the marker
+     * @return true if the jar's entries match
+     */
+    boolean matches(ZipFile zip) {
+        return entriesDigest.equals(digest(zip));
+    }
+
+    /**
+     * @return the marker as entry contents
+     */
+    byte[] toBytes() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(RULES_HASH).append(": ").append(rulesHash).append('\n');
+        if (inputDigest != null)
+            sb.append(INPUT_DIGEST).append(": ").append(inputDigest).append('\n');
+        sb.append(ENTRIES_DIGEST).append(": ").append(entriesDigest).append('\n');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Digest of a sequence of entries, built as they are written
+     */
+    static class Digest {
+        private final MessageDigest md = sha256();
+        private final byte[] numbers = new byte[16];
+
+        /**
+         * Add an entry
+         *
+         * @param name the entry name
+         * @param crc  CRC-32 of the entry data
+         * @param size uncompressed size of the entry data
+         */
+        void add(String name, long crc, long size) {
+            update(md, name);
+            for (int i = 0; i < 8; i++) {
+                numbers[i] = (byte) (crc >>> (8 * i));
+                numbers[8 + i] = (byte) (size >>> (8 * i));
+            }
+            md.update(numbers);
+        }
+
+        /**
+         * @return the digest in hex, the digest can't be added to afterwards
+         */
+        String finish() {
+            return hex(md.digest());
+        }
+    }
+
+    private static void update(MessageDigest md, String value) {
+        md.update(value.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new CtxException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+}
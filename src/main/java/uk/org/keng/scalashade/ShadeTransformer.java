@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rewrites @ScalaSignature annotations of classes as they are loaded. Classes are first checked with a raw byte
+ * search for the annotation so the common case of a non-Scala class costs very little. Results are not cached, a
+ * loader defines each class once so holding on to the rewritten bytes would only retain heap.
+ */
+class ShadeTransformer implements ClassFileTransformer {
+    private final RuleSet rules;
+    private final boolean verbose;
+    private final ThreadLocal<RewriteContext> contexts = new ThreadLocal<RewriteContext>() {
+        @Override
+        protected RewriteContext initialValue() {
+            return new RewriteContext();
+        }
+    };
+
+    private final AtomicLong classes = new AtomicLong();
+    private final AtomicLong candidates = new AtomicLong();
+    private final AtomicLong rewritten = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+
+    ShadeTransformer(RuleSet rules, boolean verbose) {
+        this.rules = rules;
+        this.verbose = verbose;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        long start = System.nanoTime();
+        classes.incrementAndGet();
+        try {
+            if (!ScalaSigClass.mayHaveSignature(classfileBuffer, classfileBuffer.length))
+                return null;
+            candidates.incrementAndGet();
+            return rewrite(className, classfileBuffer);
+        } finally {
+            nanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return counters describing the work done, for reporting the agent overhead
+     */
+    String summary() {
+        return classes.get() + " classes loaded, " + candidates.get() + " with signatures, " + rewritten.get() +
+                " rewritten, " + failures.get() + " failures, " +
+                String.format("%.3f", nanos.get() / 1e6) + "ms in transformer";
+    }
+
+    long getRewritten() {
+        return rewritten.get();
+    }
+
+    private byte[] rewrite(String className, byte[] bytes) {
+        RewriteContext ctx = contexts.get();
+        try {
+            // Stats are not recorded as JFR events here, loading JFR would add to every application's startup
+            ScalaSigClass sigClass = new ScalaSigClass(className, bytes, bytes.length, ctx, ctx.stats(),
+                    rules.prefilter());
+            ScalaSig sig = sigClass.getSig();
+            byte[] result = null;
+            if (sig != null && rules.apply(sig) > 0) {
+                result = sigClass.getBytes();
+                rewritten.incrementAndGet();
+                if (verbose)
+                    System.err.println("ScalaShade agent rewrote " + className);
+            }
+            return result;
+        } catch (Exception e) {
+            // Never let a failure stop the class loading, it may not even need changing
+            failures.incrementAndGet();
+            System.err.println("ScalaShade agent failed to shade " + className);
+            e.printStackTrace();
+            return null;
+        } finally {
+            ctx.reset();
+        }
+    }
+}
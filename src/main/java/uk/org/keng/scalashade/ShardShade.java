@@ -0,0 +1,371 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Shades a jar using several worker JVMs so that no single heap has to cope with the whole jar. The entries of
+ * the jar's central directory are split into contiguous shards of about equal compressed size, each worker shades
+ * its shard into a segment zip and the segments are then stitched together, copying their entry data unchanged and
+ * writing a merged central directory. Entries keep their original order.
+ */
+class ShardShade {
+    private final File input;
+    private final int shards;
+    private String compression = null;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int maxInFlightMB = 64;
+    private int heapMB = 0;
+    private PathFilter filter = new PathFilter();
+    private long slowEntryMillis = Integer.MAX_VALUE;
+    private boolean offHeap = false;
+    private boolean marked = false;
+
+    /**
+     * Construct for a jar on disk
+     *
+     * @param input  the jar to shade
+     * @param shards number of worker JVMs to use
+     */
+    ShardShade(File input, int shards) {
+        this.input = input;
+        this.shards = Math.max(1, shards);
+    }
+
+    /**
+     * @param compression compression option passed to the workers, see {@link EntryCompressor#forOption(String)}
+     */
+    void setCompression(String compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @param threads total worker threads, shared between the worker JVMs
+     */
+    void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @param maxInFlightMB in-flight entry data limit for each worker JVM
+     */
+    void setMaxInFlightMB(int maxInFlightMB) {
+        this.maxInFlightMB = maxInFlightMB;
+    }
+
+    /**
+     * @param heapMB maximum heap for each worker JVM, 0 to use the JVM default
+     */
+    void setHeapMB(int heapMB) {
+        this.heapMB = heapMB;
+    }
+
+    /**
+     * @param filter entry path filter passed to the workers
+     */
+    void setFilter(PathFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * @param millis slow entry logging threshold passed to the workers, see {@link JarShade#setSlowEntryThreshold}
+     */
+    void setSlowEntryThreshold(long millis) {
+        this.slowEntryMillis = millis;
+    }
+
+    /**
+     * @param offHeap true for the workers to hold entry data off-heap, see {@link JarShade#setOffHeap}
+     */
+    void setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Use markers as {@link JarShade#setMarked} does. The workers drop any marker in the input, the marker for the
+     * whole output is added as a final segment when stitching.
+     *
+     * @param marked true to use markers
+     */
+    void setMarked(boolean marked) {
+        this.marked = marked;
+    }
+
+    /**
+     * Shade the jar into a new jar
+     *
+     * @param output  location of new jar, will be created/overwritten as needed
+     * @param rules   the namespace replacements to apply
+     * @param verbose If true, extra debug is printed
+     * @throws CtxException
+     */
+    void writeTo(File output, RuleSet rules, boolean verbose) {
+        if (marked) {
+            JarShade check = new JarShade(input);
+            check.setCompression(EntryCompressor.forOption(compression));
+            check.setFilter(filter);
+            check.setMarked(true);
+            boolean done = check.alreadyShaded(output, rules, verbose);
+            check.closeInputs();
+            if (done)
+                return;
+        }
+        int[] bounds = split();
+        List<File> segments = new ArrayList<File>();
+        List<Process> workers = new ArrayList<Process>();
+        try {
+            // Start all workers, then wait for them
+            File dir = output.getAbsoluteFile().getParentFile();
+            for (int shard = 0; shard < bounds.length - 1; shard++) {
+                File segment = File.createTempFile("scalashade-shard", ".zip", dir);
+                segments.add(segment);
+                workers.add(startWorker(segment, bounds[shard], bounds[shard + 1], bounds.length - 1, rules, verbose));
+            }
+            for (int shard = 0; shard < workers.size(); shard++) {
+                int exit = workers.get(shard).waitFor();
+                if (exit != 0)
+                    throw new CtxException("Shard worker " + shard + " for " + input + " failed with exit code " + exit);
+            }
+            if (marked) {
+                File segment = File.createTempFile("scalashade-shard", ".zip", dir);
+                segments.add(segment);
+                writeMarker(segment, new ArrayList<File>(segments.subList(0, segments.size() - 1)), rules);
+            }
+            stitch(segments, output);
+            if (verbose)
+                System.out.println("Stitched " + segments.size() + " shards of " + input);
+        } catch (IOException e) {
+            throw new CtxException("Could not run shard workers for: " + input, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CtxException("Interrupted while waiting for shard workers", e);
+        } finally {
+            // A failed worker leaves the others running, they must be gone before their segments are deleted
+            stopWorkers(workers);
+            for (File segment : segments) {
+                if (!segment.delete())
+                    segment.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Split the entries into shards of about equal compressed size
+     *
+     * @return entry indexes, shard n covers from bounds[n] up to bounds[n+1]
+     */
+    private int[] split() {
+        List<Long> sizes = new ArrayList<Long>();
+        long total = 0;
+        try {
+            ZipFile zip = new ZipFile(input);
+            try {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    long size = Math.max(0, entries.nextElement().getCompressedSize());
+                    sizes.add(size);
+                    total += size;
+                }
+            } finally {
+                zip.close();
+            }
+        } catch (IOException e) {
+            throw new CtxException("Could not open jar for reading: " + input, e);
+        }
+
+        int count = Math.max(1, Math.min(shards, sizes.size()));
+        int[] bounds = new int[count + 1];
+        long sum = 0;
+        int shard = 1;
+        for (int i = 0; i < sizes.size() && shard < count; i++) {
+            sum += sizes.get(i);
+            if (sum >= total * shard / count && i + 1 > bounds[shard - 1])
+                bounds[shard++] = i + 1;
+        }
+        while (shard < count) {
+            bounds[shard] = bounds[shard - 1] + 1;
+            shard++;
+        }
+        bounds[count] = Integer.MAX_VALUE;
+        return bounds;
+    }
+
+    private Process startWorker(File segment, int start, int end, int workers, RuleSet rules, boolean verbose)
+            throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        if (heapMB > 0)
+            command.add("-Xmx" + heapMB + "m");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Main.class.getName());
+
+        // The same options as the command line, plus the range of entries
+        command.add("--shard-range");
+        command.add(Integer.toString(start));
+        command.add(Integer.toString(end));
+        command.add("-t");
+        command.add(Integer.toString(Math.max(1, threads / workers)));
+        command.add("-m");
+        command.add(Integer.toString(maxInFlightMB));
+        if (compression != null) {
+            command.add("-c");
+            command.add(compression);
+        }
+        if (slowEntryMillis != Integer.MAX_VALUE) {
+            command.add("--slow-entry-ms");
+            command.add(Long.toString(slowEntryMillis));
+        }
+        if (verbose)
+            command.add("-v");
+        if (offHeap)
+            command.add("--off-heap");
+        if (marked)
+            command.add("--marker");
+        command.addAll(filter.asArgs());
+        command.add(input.getPath());
+        command.add(segment.getPath());
+        for (Map.Entry<String, String> rule : rules.asMap().entrySet()) {
+            command.add(rule.getKey());
+            command.add(rule.getValue());
+        }
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    /**
+     * Stop any workers still running and wait for them to exit
+     *
+     * @param workers the workers started
+     */
+    private static void stopWorkers(List<Process> workers) {
+        for (Process worker : workers)
+            worker.destroy();
+        boolean interrupted = false;
+        for (Process worker : workers) {
+            while (true) {
+                try {
+                    worker.waitFor();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Write a segment holding just the marker for the stitched output
+     *
+     * @param segment the segment to create
+     * @param shaded  the segments written by the workers, in order
+     * @param rules   the namespace replacements applied
+     * @throws IOException
+     */
+    private void writeMarker(File segment, List<File> shaded, RuleSet rules) throws IOException {
+        ZipFile[] zips = new ZipFile[shaded.size()];
+        ZipFile in = new ZipFile(input);
+        String inputDigest;
+        String entriesDigest;
+        try {
+            for (int i = 0; i < zips.length; i++)
+                zips[i] = new ZipFile(shaded.get(i));
+            inputDigest = ShadeMarker.digest(in);
+            entriesDigest = ShadeMarker.digest(zips);
+        } finally {
+            in.close();
+            for (ZipFile zip : zips) {
+                if (zip != null)
+                    zip.close();
+            }
+        }
+
+        EntryCompressor compressor = EntryCompressor.forOption(compression);
+        ShadeMarker marker = new ShadeMarker(ShadeMarker.rulesHash(rules, filter, null, compressor), inputDigest,
+                entriesDigest);
+        EntrySink sink = new EntrySink.Zip(new BufferedOutputStream(new FileOutputStream(segment)), segment.getPath());
+        ZipWriter.Entry entry = compressor.compress(ShadeMarker.NAME, System.currentTimeMillis(),
+                new SpillBuffer(marker.toBytes()), false);
+        try {
+            sink.write(entry);
+        } finally {
+            entry.data.release();
+        }
+        sink.close();
+    }
+
+    /**
+     * Join segment zips into one, the entry data is copied unchanged and the central directories are merged. The
+     * comment of the first segment is kept, the workers all give their segment the comment of the input.
+     *
+     * @param segments the segments in order
+     * @param output   the zip to create
+     * @throws IOException
+     */
+    static void stitch(List<File> segments, File output) throws IOException {
+        List<ZipDirectory> directories = new ArrayList<ZipDirectory>();
+        FileOutputStream fos = new FileOutputStream(output);
+        try {
+            FileChannel out = fos.getChannel();
+            for (File segment : segments) {
+                FileInputStream in = new FileInputStream(segment);
+                try {
+                    FileChannel channel = in.getChannel();
+                    ZipDirectory directory = ZipDirectory.read(channel, segment.getPath());
+                    long copied = 0;
+                    while (copied < directory.offset())
+                        copied += channel.transferTo(copied, directory.offset() - copied, out);
+                    directories.add(directory);
+                } finally {
+                    in.close();
+                }
+            }
+
+            // The central headers are streamed from each segment in turn
+            long start = out.position();
+            OutputStream dir = new BufferedOutputStream(fos, 64 * 1024);
+            long shift = 0;
+            long size = 0;
+            long count = 0;
+            for (int i = 0; i < segments.size(); i++) {
+                ZipDirectory directory = directories.get(i);
+                FileInputStream in = new FileInputStream(segments.get(i));
+                try {
+                    size += directory.writeHeaders(in.getChannel(), dir, shift);
+                } finally {
+                    in.close();
+                }
+                shift += directory.offset();
+                count += directory.count();
+            }
+            ZipDirectory.writeEnd(dir, count, size, start,
+                    directories.isEmpty() ? new byte[0] : directories.get(0).comment());
+            dir.flush();
+        } finally {
+            fos.close();
+        }
+    }
+}
@@ -0,0 +1,517 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * On-disk index of the namespaces referenced from the @ScalaSignature of the classes in a set of jars, so the
+ * question of which classes reference a namespace can be answered without decoding every signature again.
+ * <p/>
+ * The index is a single file that is memory mapped for queries, nothing is read until it is needed. All values are
+ * big endian ints:
+ * <pre>
+ * header     magic, version, jar count, class count, namespace count,
+ *            then the offsets of the jar, class, namespace, posting & string sections
+ * jars       string offset of each jar path
+ * classes    jar number & string offset of the class name, for each class
+ * namespaces string offset, first posting & posting count for each namespace, sorted by name bytes
+ * postings   class numbers, in increasing order for each namespace
+ * strings    u2 length & UTF-8 bytes for each string
+ * </pre>
+ * A query binary searches the namespaces comparing raw bytes, then reads the postings of the namespace and of the
+ * namespaces nested in it, which sort directly after it.
+ */
+class SigIndex implements Closeable {
+    private static final int MAGIC = 0x53534958; // SSIX
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 * 10;
+    private static final int NAMESPACE_SIZE = 12;
+
+    /**
+     * Classes decoded in each task when building
+     */
+    private static final int BATCH_SIZE = 256;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int jarCount;
+    private final int classCount;
+    private final int namespaceCount;
+    private final int jarsOffset;
+    private final int classesOffset;
+    private final int namespacesOffset;
+    private final int postingsOffset;
+    private final int stringsOffset;
+
+    /**
+     * A class referencing a namespace
+     */
+    static class Match {
+        final String namespace;
+        final String jar;
+        final String className;
+
+        Match(String namespace, String jar, String className) {
+            this.namespace = namespace;
+            this.jar = jar;
+            this.className = className;
+        }
+
+        @Override
+        public String toString() {
+            return namespace + " " + jar + " " + className;
+        }
+    }
+
+    /**
+     * Open an index for querying
+     *
+     * @param indexFile the index, as written by {@link #build}
+     * @throws CtxException if the file can't be read or is not an index
+     */
+    SigIndex(File indexFile) {
+        try {
+            file = new RandomAccessFile(indexFile, "r");
+        } catch (IOException e) {
+            throw new CtxException("Failed to open index: " + indexFile, e);
+        }
+        try {
+            FileChannel channel = file.getChannel();
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE)
+                throw new CtxException("File is not an index: " + indexFile);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC)
+                throw new CtxException("File is not an index: " + indexFile);
+            if (buffer.getInt(4) != VERSION)
+                throw new CtxException("Index has unsupported version " + buffer.getInt(4) + ": " + indexFile);
+            jarCount = buffer.getInt(8);
+            classCount = buffer.getInt(12);
+            namespaceCount = buffer.getInt(16);
+            jarsOffset = buffer.getInt(20);
+            classesOffset = buffer.getInt(24);
+            namespacesOffset = buffer.getInt(28);
+            postingsOffset = buffer.getInt(32);
+            stringsOffset = buffer.getInt(36);
+        } catch (IOException e) {
+            close();
+            throw new CtxException("Failed to read index: " + indexFile, e);
+        } catch (CtxException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of jars indexed
+     */
+    int jarCount() {
+        return jarCount;
+    }
+
+    /**
+     * @return the number of classes with a @ScalaSignature indexed
+     */
+    int classCount() {
+        return classCount;
+    }
+
+    /**
+     * @return the number of distinct namespaces referenced
+     */
+    int namespaceCount() {
+        return namespaceCount;
+    }
+
+    /**
+     * Find the classes that reference a namespace, or any namespace nested within it
+     *
+     * @param namespace absolute namespace, use '.' separators as usual
+     * @return the matches ordered by namespace and then by jar & class in the order indexed
+     */
+    List<Match> query(String namespace) {
+        byte[] key = namespace.getBytes(StandardCharsets.UTF_8);
+        List<Match> matches = new ArrayList<Match>();
+
+        // Locate first namespace >= key, the nested namespaces follow it as they share it as a prefix
+        int low = 0;
+        int high = namespaceCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(namespaceString(mid), key) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        for (int n = low; n < namespaceCount; n++) {
+            int string = namespaceString(n);
+            int length = stringLength(string);
+            if (length < key.length || compare(string, key, key.length) != 0)
+                break;
+            // Skip namespaces that only share a prefix with the key, like org.apachex for org.apache
+            if (length > key.length && buffer.get(string + 2 + key.length) != '.')
+                continue;
+            String name = readString(string);
+            int entry = namespacesOffset + n * NAMESPACE_SIZE;
+            int first = buffer.getInt(entry + 4);
+            int count = buffer.getInt(entry + 8);
+            for (int p = 0; p < count; p++) {
+                int cls = buffer.getInt(postingsOffset + (first + p) * 4);
+                int classEntry = classesOffset + cls * 8;
+                String jar = readString(stringsOffset + buffer.getInt(jarsOffset + buffer.getInt(classEntry) * 4));
+                matches.add(new Match(name, jar, readString(stringsOffset + buffer.getInt(classEntry + 4))));
+            }
+        }
+        return matches;
+    }
+
+    @Override
+    public void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    private int namespaceString(int n) {
+        return stringsOffset + buffer.getInt(namespacesOffset + n * NAMESPACE_SIZE);
+    }
+
+    private int stringLength(int string) {
+        return buffer.getShort(string) & 0xffff;
+    }
+
+    private int compare(int string, byte[] key) {
+        int length = stringLength(string);
+        int common = Math.min(length, key.length);
+        int cmp = compare(string, key, common);
+        return cmp != 0 ? cmp : length - key.length;
+    }
+
+    private int compare(int string, byte[] key, int length) {
+        for (int i = 0; i < length; i++) {
+            int cmp = (buffer.get(string + 2 + i) & 0xff) - (key[i] & 0xff);
+            if (cmp != 0)
+                return cmp;
+        }
+        return 0;
+    }
+
+    private String readString(int string) {
+        byte[] bytes = new byte[stringLength(string)];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = buffer.get(string + 2 + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Counts from building an index
+     */
+    static class Built {
+        final int classes;
+        final int skipped;
+
+        Built(int classes, int skipped) {
+            this.classes = classes;
+            this.skipped = skipped;
+        }
+    }
+
+    /**
+     * Decode the signatures of the classes in some jars and write an index of the namespaces they reference. Classes
+     * that can't be decoded are skipped.
+     *
+     * @param jars      the jars to index
+     * @param indexFile where to write the index, replaced if it exists
+     * @param threads   number of threads to decode signatures on
+     * @param verbose   if true the classes skipped are logged
+     * @return the number of classes with a @ScalaSignature found & the number skipped
+     * @throws CtxException
+     */
+    static Built build(List<File> jars, File indexFile, int threads, boolean verbose) {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads),
+                new JarShade.WorkerFactory("scalashade-index"));
+        List<JarFile> open = new ArrayList<JarFile>();
+        try {
+            // Decode in batches of entries, collecting results in jar & entry order so the index is repeatable
+            List<Future<Batch>> batches = new ArrayList<Future<Batch>>();
+            for (int j = 0; j < jars.size(); j++) {
+                final File jar = jars.get(j);
+                final JarFile jarFile;
+                try {
+                    jarFile = new JarFile(jar);
+                } catch (IOException e) {
+                    throw new CtxException("Failed to open jar: " + jar, e);
+                }
+                open.add(jarFile);
+                List<JarEntry> batch = new ArrayList<JarEntry>();
+                Enumeration<JarEntry> entries = jarFile.entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry entry = entries.nextElement();
+                    if (!entry.isDirectory() && entry.getName().endsWith(".class"))
+                        batch.add(entry);
+                    if (batch.size() == BATCH_SIZE || (!entries.hasMoreElements() && !batch.isEmpty())) {
+                        batches.add(pool.submit(new Decoder(j, jar.getPath(), jarFile, batch, verbose)));
+                        batch = new ArrayList<JarEntry>();
+                    }
+                }
+            }
+
+            // Gather class names & the classes referencing each namespace
+            List<String> strings = new ArrayList<String>();
+            Map<String, Integer> stringIds = new HashMap<String, Integer>();
+            List<int[]> classes = new ArrayList<int[]>();
+            Map<String, List<Integer>> postings = new HashMap<String, List<Integer>>();
+            int skipped = 0;
+            for (Future<Batch> future : batches) {
+                Batch batch = future.get();
+                skipped += batch.skipped;
+                for (ClassRefs refs : batch.found) {
+                    int cls = classes.size();
+                    classes.add(new int[]{refs.jar, intern(refs.className, strings, stringIds)});
+                    for (String namespace : refs.namespaces) {
+                        List<Integer> posting = postings.get(namespace);
+                        if (posting == null) {
+                            posting = new ArrayList<Integer>();
+                            postings.put(namespace, posting);
+                        }
+                        posting.add(cls);
+                    }
+                }
+            }
+
+            write(indexFile, jars, strings, stringIds, classes, postings);
+            return new Built(classes.size(), skipped);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CtxException("Interrupted while indexing", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CtxException)
+                throw (CtxException) e.getCause();
+            throw new CtxException("Failed to index jars", e);
+        } finally {
+            pool.shutdownNow();
+            for (JarFile jarFile : open) {
+                try {
+                    jarFile.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private static int intern(String s, List<String> strings, Map<String, Integer> ids) {
+        Integer id = ids.get(s);
+        if (id == null) {
+            id = strings.size();
+            strings.add(s);
+            ids.put(s, id);
+        }
+        return id;
+    }
+
+    /**
+     * Write out the index sections
+     */
+    private static void write(File indexFile, List<File> jars, List<String> strings, Map<String, Integer> stringIds,
+                              List<int[]> classes, Map<String, List<Integer>> postings) {
+        List<byte[]> namespaces = new ArrayList<byte[]>();
+        for (String namespace : postings.keySet())
+            namespaces.add(namespace.getBytes(StandardCharsets.UTF_8));
+        Collections.sort(namespaces, new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] a, byte[] b) {
+                int common = Math.min(a.length, b.length);
+                for (int i = 0; i < common; i++) {
+                    int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+                    if (cmp != 0)
+                        return cmp;
+                }
+                return a.length - b.length;
+            }
+        });
+
+        int[] jarStrings = new int[jars.size()];
+        for (int j = 0; j < jars.size(); j++)
+            jarStrings[j] = intern(jars.get(j).getPath(), strings, stringIds);
+        int[] namespaceStrings = new int[namespaces.size()];
+        for (int n = 0; n < namespaces.size(); n++)
+            namespaceStrings[n] = intern(new String(namespaces.get(n), StandardCharsets.UTF_8), strings, stringIds);
+
+        // Lay out the string heap
+        int[] stringOffsets = new int[strings.size()];
+        int heapSize = 0;
+        List<byte[]> encoded = new ArrayList<byte[]>(strings.size());
+        for (int s = 0; s < strings.size(); s++) {
+            byte[] bytes = strings.get(s).getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xffff)
+                throw new CtxException("Name too long to index: " + strings.get(s).substring(0, 100) + "...");
+            encoded.add(bytes);
+            stringOffsets[s] = heapSize;
+            heapSize += 2 + bytes.length;
+        }
+
+        int postingCount = 0;
+        for (List<Integer> posting : postings.values())
+            postingCount += posting.size();
+        long jarsOffset = HEADER_SIZE;
+        long classesOffset = jarsOffset + 4L * jars.size();
+        long namespacesOffset = classesOffset + 8L * classes.size();
+        long postingsOffset = namespacesOffset + (long) NAMESPACE_SIZE * namespaces.size();
+        long stringsOffset = postingsOffset + 4L * postingCount;
+        if (stringsOffset + heapSize > Integer.MAX_VALUE)
+            throw new CtxException("Index would be larger than 2GB");
+
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(jars.size());
+                out.writeInt(classes.size());
+                out.writeInt(namespaces.size());
+                out.writeInt((int) jarsOffset);
+                out.writeInt((int) classesOffset);
+                out.writeInt((int) namespacesOffset);
+                out.writeInt((int) postingsOffset);
+                out.writeInt((int) stringsOffset);
+                for (int jarString : jarStrings)
+                    out.writeInt(stringOffsets[jarString]);
+                for (int[] cls : classes) {
+                    out.writeInt(cls[0]);
+                    out.writeInt(stringOffsets[cls[1]]);
+                }
+                int first = 0;
+                for (int n = 0; n < namespaces.size(); n++) {
+                    int size = postings.get(strings.get(namespaceStrings[n])).size();
+                    out.writeInt(stringOffsets[namespaceStrings[n]]);
+                    out.writeInt(first);
+                    out.writeInt(size);
+                    first += size;
+                }
+                for (int n = 0; n < namespaces.size(); n++) {
+                    for (int cls : postings.get(strings.get(namespaceStrings[n])))
+                        out.writeInt(cls);
+                }
+                for (byte[] bytes : encoded) {
+                    out.writeShort(bytes.length);
+                    out.write(bytes);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new CtxException("Failed to write index: " + indexFile, e);
+        }
+    }
+
+    /**
+     * The namespaces referenced from a class
+     */
+    private static class ClassRefs {
+        final int jar;
+        final String className;
+        final Set<String> namespaces;
+
+        ClassRefs(int jar, String className, Set<String> namespaces) {
+            this.jar = jar;
+            this.className = className;
+            this.namespaces = namespaces;
+        }
+    }
+
+    /**
+     * The classes decoded from a batch of jar entries
+     */
+    private static class Batch {
+        final List<ClassRefs> found = new ArrayList<ClassRefs>();
+        int skipped = 0;
+    }
+
+    /**
+     * Decodes the signatures of a batch of jar entries
+     */
+    private static class Decoder implements Callable<Batch> {
+        private static final ThreadLocal<RewriteContext> contexts = new ThreadLocal<RewriteContext>() {
+            @Override
+            protected RewriteContext initialValue() {
+                return new RewriteContext();
+            }
+        };
+
+        private final int jar;
+        private final String jarPath;
+        private final JarFile jarFile;
+        private final List<JarEntry> entries;
+        private final boolean verbose;
+
+        Decoder(int jar, String jarPath, JarFile jarFile, List<JarEntry> entries, boolean verbose) {
+            this.jar = jar;
+            this.jarPath = jarPath;
+            this.jarFile = jarFile;
+            this.entries = entries;
+            this.verbose = verbose;
+        }
+
+        @Override
+        public Batch call() throws IOException {
+            RewriteContext ctx = contexts.get();
+            Batch batch = new Batch();
+            for (JarEntry entry : entries) {
+                InputStream in = jarFile.getInputStream(entry);
+                int length;
+                try {
+                    length = ctx.readEntry(in);
+                } finally {
+                    in.close();
+                }
+                byte[] bytes = ctx.entryBuffer();
+                String path = jarPath + "!" + entry.getName();
+                try {
+                    if (!ScalaSigClass.mayHaveSignature(bytes, length))
+                        continue;
+                    ScalaSig sig = new ScalaSigClass(path, bytes, length, ctx, ctx.stats(), null).getSig();
+                    if (sig != null) {
+                        String name = entry.getName();
+                        name = name.substring(0, name.length() - ".class".length()).replace('/', '.');
+                        batch.found.add(new ClassRefs(jar, name, sig.namespaces()));
+                    }
+                } catch (Exception e) {
+                    // One bad signature should not stop the rest of the class path being indexed
+                    batch.skipped++;
+                    if (verbose) {
+                        System.err.println("Failed to index " + path);
+                        e.printStackTrace();
+                    }
+                } finally {
+                    ctx.reset();
+                }
+            }
+            return batch;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fast negative check for whether any rule could match a signature, made on the encoded annotation string so that
+ * signatures that can't match need not be decoded or parsed.
+ * <p/>
+ * Each component of a namespace is stored in the signature as a TermName holding its UTF-8 bytes. The encoding
+ * packs bytes into 7-bit groups so a byte at offset p starts at bit (p % 7) of a group, giving seven possible
+ * alignments. For each alignment the groups made entirely from bits of the name are fixed, so their encoded form
+ * (see {@link Encoding}) must appear in the string if the name is present. A rule can only match if this holds for
+ * every component of its namespace.
+ * <p/>
+ * A group of seven set bits encodes as 0, held in the class file as the modified UTF-8 bytes C0 80, which ASM hands
+ * back as '\u0000'.
+ */
+class SigPrefilter {
+
+    /**
+     * Encoded forms of a namespace component, one per alignment
+     */
+    private static class Component {
+        final String[] patterns = new String[7];
+
+        Component(String name) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            for (int align = 0; align < 7; align++)
+                patterns[align] = pattern(bytes, align);
+        }
+
+        boolean foundIn(String encoded) {
+            for (String pattern : patterns) {
+                if (encoded.contains(pattern))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private final List<Component[]> rules = new ArrayList<Component[]>();
+
+    /**
+     * Create for a set of namespaces to replace
+     *
+     * @param namespaces the namespaces that rules match
+     */
+    SigPrefilter(Iterable<String> namespaces) {
+        Map<String, Component> components = new LinkedHashMap<String, Component>();
+        for (String namespace : namespaces) {
+            String[] names = namespace.split("\\.");
+            Component[] rule = new Component[names.length];
+            for (int i = 0; i < names.length; i++) {
+                Component component = components.get(names[i]);
+                if (component == null) {
+                    component = new Component(names[i]);
+                    components.put(names[i], component);
+                }
+                rule[i] = component;
+            }
+            rules.add(rule);
+        }
+    }
+
+    /**
+     * Test if an encoded signature could contain any of the namespaces
+     *
+     * @param encoded the @ScalaSignature string
+     * @return false if no namespace can be present, true if it may be
+     */
+    boolean mayMatch(String encoded) {
+        outer:
+        for (Component[] rule : rules) {
+            for (Component component : rule) {
+                if (!component.foundIn(encoded))
+                    continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Encode the groups fully determined by some bytes starting at a bit offset within a group
+     *
+     * @param bytes the raw bytes
+     * @param align bit offset of the first byte within its group, 0 to 6
+     * @return encoded string of the complete groups, with any 0 as '\u0000'
+     */
+    static String pattern(byte[] bytes, int align) {
+        int bits = bytes.length * 8;
+        int first = align == 0 ? 0 : 1;
+        int last = (align + bits) / 7;
+        StringBuilder sb = new StringBuilder();
+        for (int group = first; group < last; group++) {
+            int value = 0;
+            for (int j = 0; j < 7; j++) {
+                int bit = group * 7 + j - align;
+                if ((bytes[bit / 8] >> (bit % 8) & 1) != 0)
+                    value |= 1 << j;
+            }
+            sb.append((char) ((value + 1) & 0x7F));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Buffer for entry data that is held in memory up to a limit, after which it is spilled to a temporary file.
+ * Write the data and then {@link #close()} the buffer before reading it back. Any temporary file is deleted by
+ * {@link #release()} which should be called once the data is no longer needed. A closed buffer may be shared, for
+ * example between several outputs, by calling {@link #retain()} for each extra owner.
+ * <p/>
+ * When created with an {@link OffHeapArena} the data is held in direct slabs taken from the arena rather than in a
+ * heap array, so there is no {@link #array()} and it is read back through {@link #openStream()} or
+ * {@link #writeTo(OutputStream)}. The slabs go back to the arena on release.
+ */
+class SpillBuffer extends OutputStream {
+    private final long memoryLimit;
+    private byte[] buffer;
+    private int count = 0;
+    private File file = null;
+    private OutputStream fileOut = null;
+    private long size = 0;
+    private int owners = 1;
+    private final OffHeapArena arena;
+    private ByteBuffer[] slabs = null;
+    private int slabCount = 0;
+
+    /**
+     * Copy buffer for moving data between slabs and streams
+     */
+    private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[64 * 1024];
+        }
+    };
+
+    /**
+     * Construct an empty buffer
+     *
+     * @param memoryLimit bytes to hold in memory before spilling to disk
+     */
+    SpillBuffer(long memoryLimit) {
+        this(memoryLimit, 4096);
+    }
+
+    /**
+     * Construct an empty buffer with an initial capacity
+     *
+     * @param memoryLimit bytes to hold in memory before spilling to disk
+     * @param initialSize initial size of the memory buffer, this is capped at memoryLimit
+     */
+    SpillBuffer(long memoryLimit, long initialSize) {
+        this.memoryLimit = memoryLimit;
+        this.buffer = new byte[(int) Math.max(0, Math.min(memoryLimit, initialSize))];
+        this.arena = null;
+    }
+
+    /**
+     * Construct an empty buffer held off-heap
+     *
+     * @param memoryLimit bytes to hold in memory before spilling to disk
+     * @param arena       arena to take slabs from, or null to use the heap
+     */
+    SpillBuffer(long memoryLimit, OffHeapArena arena) {
+        this.memoryLimit = memoryLimit;
+        this.arena = arena;
+        if (arena != null)
+            this.slabs = new ByteBuffer[4];
+        else
+            this.buffer = new byte[(int) Math.min(memoryLimit, 4096)];
+    }
+
+    /**
+     * Construct a buffer wrapping existing data, the array is not copied
+     *
+     * @param bytes the data
+     */
+    SpillBuffer(byte[] bytes) {
+        this.memoryLimit = bytes.length;
+        this.buffer = bytes;
+        this.count = bytes.length;
+        this.size = bytes.length;
+        this.arena = null;
+    }
+
+    /**
+     * Create a buffer holding existing data, copied into the arena if there is one
+     *
+     * @param bytes the data, not copied if there is no arena
+     * @param arena arena to take slabs from, or null to use the heap
+     * @return the closed buffer
+     */
+    static SpillBuffer wrap(byte[] bytes, OffHeapArena arena) {
+        if (arena == null)
+            return new SpillBuffer(bytes);
+        SpillBuffer spill = new SpillBuffer(bytes.length, arena);
+        try {
+            spill.write(bytes, 0, bytes.length);
+        } catch (IOException e) {
+            // Can't happen, the limit is the size so it is never spilled
+            spill.release();
+            throw new CtxException("Could not buffer entry data", e);
+        }
+        return spill;
+    }
+
+    /**
+     * Fill a buffer with the remaining contents of a stream, the stream is not closed. The stream is read directly
+     * into the memory buffer so if the size is known in advance no intermediate copies are made.
+     *
+     * @param in          stream to read
+     * @param memoryLimit bytes to hold in memory before spilling to disk
+     * @param sizeHint    expected size of the data, or -1 if not known
+     * @return the filled & closed buffer
+     * @throws IOException
+     */
+    static SpillBuffer read(InputStream in, long memoryLimit, long sizeHint) throws IOException {
+        return read(in, memoryLimit, sizeHint, null);
+    }
+
+    /**
+     * Fill a buffer with the remaining contents of a stream, the stream is not closed
+     *
+     * @param in          stream to read
+     * @param memoryLimit bytes to hold in memory before spilling to disk
+     * @param sizeHint    expected size of the data, or -1 if not known
+     * @param arena       arena to take slabs from, or null to use the heap
+     * @return the filled & closed buffer
+     * @throws IOException
+     */
+    static SpillBuffer read(InputStream in, long memoryLimit, long sizeHint, OffHeapArena arena) throws IOException {
+        SpillBuffer spill = arena != null ? new SpillBuffer(memoryLimit, arena) :
+                new SpillBuffer(memoryLimit, sizeHint >= 0 ? sizeHint : 4096);
+        try {
+            spill.readFrom(in);
+            spill.close();
+        } catch (IOException e) {
+            spill.release();
+            throw e;
+        }
+        return spill;
+    }
+
+    private void readFrom(InputStream in) throws IOException {
+        while (fileOut == null && arena == null) {
+            if (count == buffer.length) {
+                // Full, check for end of data before growing or spilling
+                int b = in.read();
+                if (b == -1)
+                    return;
+                write(b);
+                continue;
+            }
+            int bytesRead = in.read(buffer, count, buffer.length - count);
+            if (bytesRead == -1)
+                return;
+            count += bytesRead;
+            size += bytesRead;
+        }
+
+        byte[] byteBuffer = scratch.get();
+        int bytesRead;
+        while ((bytesRead = in.read(byteBuffer)) != -1) {
+            write(byteBuffer, 0, bytesRead);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (fileOut == null && count + 1L > memoryLimit)
+            spill();
+        if (fileOut != null) {
+            fileOut.write(b);
+        } else if (arena != null) {
+            currentSlab().put((byte) b);
+            count++;
+        } else {
+            if (count == buffer.length)
+                grow(count + 1);
+            buffer[count++] = (byte) b;
+        }
+        size++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int off, int len) throws IOException {
+        if (fileOut == null && count + (long) len > memoryLimit)
+            spill();
+        if (fileOut != null) {
+            fileOut.write(bytes, off, len);
+        } else if (arena != null) {
+            int remaining = len;
+            while (remaining > 0) {
+                ByteBuffer slab = currentSlab();
+                int n = Math.min(remaining, slab.remaining());
+                slab.put(bytes, off, n);
+                off += n;
+                remaining -= n;
+                count += n;
+            }
+        } else {
+            if (count + len > buffer.length)
+                grow(count + len);
+            System.arraycopy(bytes, off, buffer, count, len);
+            count += len;
+        }
+        size += len;
+    }
+
+    /**
+     * Over the limit, move what we have so far to disk
+     */
+    private void spill() throws IOException {
+        file = File.createTempFile("scalashade", ".tmp");
+        fileOut = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        if (arena != null) {
+            // Own copy buffer, the data being written may be in one of the shared ones
+            writeSlabs(fileOut, new byte[OffHeapArena.SLAB_SIZE]);
+            releaseSlabs();
+        } else {
+            fileOut.write(buffer, 0, count);
+        }
+        buffer = null;
+        count = 0;
+    }
+
+    /**
+     * @return the slab being filled, a new one is taken from the arena if the last is full
+     */
+    private ByteBuffer currentSlab() {
+        ByteBuffer slab = slabCount > 0 ? slabs[slabCount - 1] : null;
+        if (slab == null || !slab.hasRemaining()) {
+            if (slabCount == slabs.length)
+                slabs = Arrays.copyOf(slabs, slabs.length * 2);
+            slab = arena.allocate();
+            slabs[slabCount++] = slab;
+        }
+        return slab;
+    }
+
+    /**
+     * Grow the heap buffer to hold at least some number of bytes, up to the memory limit
+     */
+    private void grow(int needed) {
+        buffer = Arrays.copyOf(buffer, (int) Math.min(memoryLimit, Math.max(needed, buffer.length * 2L)));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fileOut != null) {
+            fileOut.close();
+            fileOut = null;
+        }
+    }
+
+    /**
+     * @return total number of bytes written
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return true if the data is held in memory, either on the heap or in an arena
+     */
+    boolean inMemory() {
+        return file == null;
+    }
+
+    /**
+     * @return bytes of memory holding the data, heap or off-heap, none once spilled
+     */
+    long memoryUsed() {
+        if (file != null)
+            return 0;
+        return arena != null ? (long) slabCount * OffHeapArena.SLAB_SIZE : size;
+    }
+
+    /**
+     * @return true if the data is held in a heap array, see {@link #array()}
+     */
+    boolean hasArray() {
+        return file == null && arena == null;
+    }
+
+    /**
+     * Access in memory data, only the first {@link #size()} bytes are valid
+     *
+     * @return the backing array
+     */
+    byte[] array() {
+        if (file != null)
+            throw new IllegalStateException("Buffer has been spilled to disk");
+        if (arena != null)
+            throw new IllegalStateException("Buffer is held off-heap");
+        return buffer;
+    }
+
+    /**
+     * Open a stream for reading the data
+     *
+     * @return the stream
+     * @throws IOException
+     */
+    InputStream openStream() throws IOException {
+        if (file != null)
+            return new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+        if (arena != null)
+            return new SlabInputStream();
+        return new ByteArrayInputStream(buffer, 0, count);
+    }
+
+    /**
+     * Copy the data onto a stream
+     *
+     * @param out stream to write to
+     * @throws IOException
+     */
+    void writeTo(OutputStream out) throws IOException {
+        if (file == null && arena != null) {
+            writeSlabs(out, scratch.get());
+            return;
+        }
+        if (file == null) {
+            out.write(buffer, 0, count);
+            return;
+        }
+        InputStream in = openStream();
+        try {
+            byte[] byteBuffer = scratch.get();
+            int bytesRead;
+            while ((bytesRead = in.read(byteBuffer)) != -1) {
+                out.write(byteBuffer, 0, bytesRead);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Add an owner, the data is only discarded once each owner has called {@link #release()}
+     *
+     * @return this buffer
+     */
+    synchronized SpillBuffer retain() {
+        owners++;
+        return this;
+    }
+
+    /**
+     * Discard the data, deleting any temporary file, once there are no other owners
+     */
+    void release() {
+        synchronized (this) {
+            if (--owners > 0)
+                return;
+        }
+        try {
+            close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        if (file != null) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+        releaseSlabs();
+        buffer = null;
+    }
+
+    private void writeSlabs(OutputStream out, byte[] byteBuffer) throws IOException {
+        for (int i = 0; i < slabCount; i++) {
+            // Read through a duplicate so buffers shared between threads can be written concurrently
+            ByteBuffer slab = slabs[i].duplicate();
+            // Through Buffer so the calls also link on Java 8, which lacks the ByteBuffer overrides
+            ((Buffer) slab).flip();
+            while (slab.hasRemaining()) {
+                int n = Math.min(slab.remaining(), byteBuffer.length);
+                slab.get(byteBuffer, 0, n);
+                out.write(byteBuffer, 0, n);
+            }
+        }
+    }
+
+    private synchronized void releaseSlabs() {
+        if (slabs == null)
+            return;
+        for (int i = 0; i < slabCount; i++)
+            arena.release(slabs[i]);
+        slabs = null;
+        slabCount = 0;
+    }
+
+    /**
+     * Reads the data back from the slabs
+     */
+    private class SlabInputStream extends InputStream {
+        private int slab = 0;
+        private int position = 0;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            while (slab < slabCount && position == slabs[slab].position()) {
+                slab++;
+                position = 0;
+            }
+            if (slab >= slabCount)
+                return -1;
+            ByteBuffer view = slabs[slab].duplicate();
+            ((Buffer) view).flip();
+            ((Buffer) view).position(position);
+            int n = Math.min(len, view.remaining());
+            view.get(b, off, n);
+            position += n;
+            return n;
+        }
+    }
+}
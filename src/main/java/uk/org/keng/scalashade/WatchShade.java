@@ -0,0 +1,426 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Keeps an output directory a shaded mirror of a class directory, such as the output of continuous compilation.
+ * <p/>
+ * After an initial sync the input tree is watched and only the files created or modified are processed again, on a
+ * pool of worker threads. Compilers tend to write a file several times in quick succession so a file is only picked
+ * up once it has been quiet for the debounce period. Files are written to a temporary name and moved into place so
+ * a class loader reading the output never sees a partly written class.
+ * <p/>
+ * Files are judged up to date by their timestamps, so a hash of the rules & filter is kept in a marker file in the
+ * output. If the output was written with different ones everything is processed again.
+ */
+class WatchShade implements Closeable {
+    private static final String TEMP_SUFFIX = ".scalashade-tmp";
+    static final String MARKER = ".scalashade.marker";
+
+    private final Path inDir;
+    private final Path outDir;
+    private final RuleSet rules;
+    private final boolean verbose;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long debounceNanos = TimeUnit.MILLISECONDS.toNanos(20);
+    private PathFilter filter = new PathFilter();
+    private final Map<Path, Long> pending = new LinkedHashMap<Path, Long>();
+    private final Set<Path> inFlight = ConcurrentHashMap.newKeySet();
+    private volatile WatchService watcher = null;
+    private volatile boolean closed = false;
+    private final ThreadLocal<RewriteContext> contexts = new ThreadLocal<RewriteContext>() {
+        @Override
+        protected RewriteContext initialValue() {
+            return new RewriteContext();
+        }
+    };
+
+    /**
+     * Create for a pair of directories
+     *
+     * @param inDir   directory to watch, normally a compiler's class output
+     * @param outDir  directory to mirror the shaded files into, created if needed
+     * @param rules   namespace replacements to apply
+     * @param verbose log files as they are updated
+     * @throws CtxException if the input is not a directory
+     */
+    WatchShade(File inDir, File outDir, RuleSet rules, boolean verbose) {
+        if (!inDir.isDirectory())
+            throw new CtxException("Watch input is not a directory: " + inDir);
+        this.inDir = inDir.toPath().toAbsolutePath().normalize();
+        this.outDir = outDir.toPath().toAbsolutePath().normalize();
+        if (this.outDir.startsWith(this.inDir))
+            throw new CtxException("Watch output can not be inside the input directory: " + outDir);
+        this.rules = rules;
+        this.verbose = verbose;
+    }
+
+    /**
+     * Set the number of threads used to process changed files, defaults to the number of processors
+     *
+     * @param threads number of threads, must be at least 1
+     */
+    void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Set how long a file must go unchanged before it is processed, defaults to 20ms
+     *
+     * @param millis quiet period in milliseconds
+     */
+    void setDebounce(long millis) {
+        this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+    }
+
+    /**
+     * Set which files are processed, files the filter does not accept are copied unchanged. Paths are matched
+     * relative to the input directory with '/' separators.
+     *
+     * @param filter the path filter
+     */
+    void setFilter(PathFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Bring the output up to date with the input, files whose output is at least as new as the input are skipped
+     * unless the output was written with different rules
+     *
+     * @return the number of files processed
+     * @throws CtxException
+     */
+    int sync() {
+        final ExecutorService pool = Executors.newFixedThreadPool(threads,
+                new JarShade.WorkerFactory("scalashade-watch"));
+        final int[] count = {0};
+        Path marker = outDir.resolve(MARKER);
+        String rulesHash = ShadeMarker.rulesHash(rules, filter);
+        try {
+            // The marker is removed while a full resync runs, so it is not trusted if the resync is cut short
+            final boolean resync = !rulesHash.equals(readMarker(marker));
+            if (resync)
+                Files.deleteIfExists(marker);
+            Files.walkFileTree(inDir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(final Path file, BasicFileAttributes attrs) throws IOException {
+                    if (resync || isStale(file, attrs)) {
+                        count[0]++;
+                        pool.submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                update(file);
+                            }
+                        });
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            if (resync) {
+                Files.createDirectories(outDir);
+                Path temp = marker.resolveSibling(MARKER + TEMP_SUFFIX);
+                Files.write(temp, rulesHash.getBytes(StandardCharsets.UTF_8));
+                Files.move(temp, marker, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException e) {
+            throw new CtxException("Failed to sync directory: " + inDir, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+        return count[0];
+    }
+
+    /**
+     * @return the rules hash held in a marker file, or null if there isn't one
+     */
+    private static String readMarker(Path marker) throws IOException {
+        try {
+            return new String(Files.readAllBytes(marker), StandardCharsets.UTF_8).trim();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the output of a file is missing or older than it
+     */
+    private boolean isStale(Path file, BasicFileAttributes attrs) throws IOException {
+        Path target = outputFor(file);
+        return !Files.isRegularFile(target) ||
+                Files.getLastModifiedTime(target).compareTo(attrs.lastModifiedTime()) < 0;
+    }
+
+    /**
+     * Sync the output and then watch the input for changes until {@link #close()} is called or the thread is
+     * interrupted. The watch starts before the sync so changes made during it are not missed.
+     *
+     * @throws CtxException
+     */
+    void run() {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new JarShade.WorkerFactory("scalashade-watch"));
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            if (closed)
+                return;
+            register(inDir, false);
+            int synced = sync();
+            if (verbose)
+                System.out.println("Watching " + inDir + ", " + synced + " files updated");
+            while (!closed) {
+                WatchKey key = pending.isEmpty() ? watcher.take() : watcher.poll(debounceNanos, TimeUnit.NANOSECONDS);
+                while (key != null) {
+                    handle(key);
+                    key = watcher.poll();
+                }
+                flush(pool);
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Closed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new CtxException("Failed to watch directory: " + inDir, e);
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            close();
+        }
+    }
+
+    /**
+     * Stop watching, files already being processed are completed
+     */
+    @Override
+    public void close() {
+        closed = true;
+        WatchService service = watcher;
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Register a directory tree with the watcher
+     *
+     * @param dir        root of tree to watch
+     * @param newlyFound true if the tree was just created, its files are queued as they may have been written
+     *                   before it could be registered
+     */
+    private void register(Path dir, final boolean newlyFound) throws IOException {
+        final long now = System.nanoTime();
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (newlyFound)
+                    pending.put(file, now);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Queue the files whose output is out of date, after events have been lost. Directories are registered again in
+     * case their creation was one of them.
+     */
+    private void rescan() throws IOException {
+        final long now = System.nanoTime();
+        Files.walkFileTree(inDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (!file.getFileName().toString().endsWith(TEMP_SUFFIX) && isStale(file, attrs)) {
+                    pending.remove(file);
+                    pending.put(file, now);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Record the events of a key as pending work
+     */
+    private void handle(WatchKey key) throws IOException {
+        Path dir = (Path) key.watchable();
+        long now = System.nanoTime();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                // Lost track, fall back to comparing timestamps through the normal queue
+                rescan();
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if (path.getFileName().toString().endsWith(TEMP_SUFFIX))
+                continue;
+            if (event.kind() == ENTRY_DELETE) {
+                pending.remove(path);
+                delete(outputFor(path));
+            } else if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                if (event.kind() == ENTRY_CREATE)
+                    register(path, true);
+            } else {
+                // Re-inserting moves the file to the back so it waits for a full quiet period
+                pending.remove(path);
+                pending.put(path, now);
+            }
+        }
+        key.reset();
+    }
+
+    /**
+     * Hand files that have been quiet for long enough to the pool, a file still being processed from an earlier
+     * change is left pending so updates to one file are never written out of order
+     */
+    private void flush(ExecutorService pool) {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Path, Long>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Long> entry = it.next();
+            if (now - entry.getValue() < debounceNanos)
+                break;
+            final Path file = entry.getKey();
+            if (!inFlight.add(file))
+                continue;
+            it.remove();
+            pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        update(file);
+                    } finally {
+                        inFlight.remove(file);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Shade or copy a single file into the output, errors are logged rather than thrown as the file may still be
+     * being written, in which case a later event will bring it back here
+     */
+    private void update(Path file) {
+        try {
+            byte[] bytes;
+            try {
+                bytes = Files.readAllBytes(file);
+            } catch (NoSuchFileException e) {
+                return;
+            }
+
+            boolean modified = false;
+            if (file.getFileName().toString().endsWith(".class") && acceptsPath(file) &&
+                    ScalaSigClass.mayHaveSignature(bytes, bytes.length)) {
+                RewriteContext ctx = contexts.get();
+                try {
+                    ScalaSigClass sigClass = new ScalaSigClass(file.toString(), bytes, bytes.length, ctx,
+                            ctx.stats(), rules.prefilter());
+                    ScalaSig sig = sigClass.getSig();
+                    if (sig != null && rules.apply(sig) > 0) {
+                        bytes = sigClass.getBytes();
+                        modified = true;
+                    }
+                } finally {
+                    ctx.reset();
+                }
+            }
+
+            Path target = outputFor(file);
+            Files.createDirectories(target.getParent());
+            Path temp = target.resolveSibling(target.getFileName() + TEMP_SUFFIX);
+            Files.write(temp, bytes);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (verbose)
+                System.out.println((modified ? "Modified:  " : "Copied:    ") + inDir.relativize(file));
+        } catch (CtxException e) {
+            System.err.println("Failed to shade " + file + ": " + e.getMessage());
+        } catch (IOException e) {
+            System.err.println("Failed to update " + outputFor(file) + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Remove a file or directory tree from the output
+     */
+    private void delete(Path target) throws IOException {
+        if (!Files.exists(target, LinkOption.NOFOLLOW_LINKS))
+            return;
+        Files.walkFileTree(target, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.deleteIfExists(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.deleteIfExists(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (verbose)
+            System.out.println("Deleted:   " + outDir.relativize(target));
+    }
+
+    private boolean acceptsPath(Path file) {
+        return filter.acceptsAll() || filter.accepts(inDir.relativize(file).toString().replace(File.separatorChar, '/'));
+    }
+
+    private Path outputFor(Path file) {
+        return outDir.resolve(inDir.relativize(file));
+    }
+}
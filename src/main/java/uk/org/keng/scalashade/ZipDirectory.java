@@ -0,0 +1,372 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+import static uk.org.keng.scalashade.ZipWriter.*;
+
+/**
+ * The central directory of a zip file, read so that zips can be stitched together or their entries copied as they
+ * are stored. Only the end records are read up front, the central headers are streamed from the file when written
+ * back with their local header offsets moved, everything else is passed through. Zip64 records are understood and
+ * added where the moved offsets need them.
+ */
+class ZipDirectory {
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_END_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int SIZE_FIELD = 20;
+    private static final int OFFSET_FIELD = 42;
+
+    private final String path;
+    private final long count;
+    private final long size;
+    private final long offset;
+    private final byte[] comment;
+
+    private ZipDirectory(String path, long count, long size, long offset, byte[] comment) {
+        this.path = path;
+        this.count = count;
+        this.size = size;
+        this.offset = offset;
+        this.comment = comment;
+    }
+
+    /**
+     * Read the end records of a zip to locate its central directory
+     *
+     * @param channel the zip file
+     * @param path    name of the zip, just for error reporting
+     * @return the directory
+     * @throws CtxException if the zip can not be read or is not valid
+     */
+    static ZipDirectory read(FileChannel channel, String path) {
+        try {
+            // The end record is last but may be followed by a comment of up to 64K
+            long fileSize = channel.size();
+            int tail = (int) Math.min(fileSize, END_SIZE + 0xffff);
+            ByteBuffer buffer = ByteBuffer.allocate(tail).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, buffer, fileSize - tail);
+            int end = -1;
+            for (int at = tail - END_SIZE; at >= 0; at--) {
+                if (buffer.getInt(at) == END_SIG) {
+                    end = at;
+                    break;
+                }
+            }
+            if (end == -1)
+                throw new CtxException("Could not find end of central directory in: " + path);
+
+            long count = buffer.getShort(end + 10) & 0xffff;
+            long dirSize = buffer.getInt(end + 12) & 0xffffffffL;
+            long dirOffset = buffer.getInt(end + 16) & 0xffffffffL;
+            byte[] comment = new byte[Math.min(buffer.getShort(end + 20) & 0xffff, tail - end - END_SIZE)];
+            ((Buffer) buffer).position(end + END_SIZE);
+            buffer.get(comment);
+
+            // A Zip64 locator directly before the end record points at the Zip64 end record with the full values
+            long endPosition = fileSize - tail + end;
+            if (endPosition >= ZIP64_LOCATOR_SIZE) {
+                ByteBuffer locator = ByteBuffer.allocate(ZIP64_LOCATOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(channel, locator, endPosition - ZIP64_LOCATOR_SIZE);
+                if (locator.getInt(0) == ZIP64_LOCATOR_SIG) {
+                    ByteBuffer end64 = ByteBuffer.allocate(ZIP64_END_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                    readFully(channel, end64, locator.getLong(8));
+                    if (end64.getInt(0) != ZIP64_END_SIG)
+                        throw new CtxException("Zip64 end of central directory is corrupt in: " + path);
+                    count = end64.getLong(32);
+                    dirSize = end64.getLong(40);
+                    dirOffset = end64.getLong(48);
+                }
+            }
+            if (dirOffset + dirSize > fileSize)
+                throw new CtxException("Central directory is corrupt in: " + path);
+            return new ZipDirectory(path, count, dirSize, dirOffset, comment);
+        } catch (IOException e) {
+            throw new CtxException("Could not read central directory of: " + path, e);
+        }
+    }
+
+    /**
+     * @return number of entries in the directory
+     */
+    long count() {
+        return count;
+    }
+
+    /**
+     * @return offset of the directory, which is also the length of the entry data before it
+     */
+    long offset() {
+        return offset;
+    }
+
+    /**
+     * @return the comment for the zip as a whole, empty if there is none
+     */
+    byte[] comment() {
+        return comment;
+    }
+
+    /**
+     * Write the central headers, moving the entries by some amount. Headers whose moved offset no longer fits gain
+     * a Zip64 field for it, so the size written may differ from the size read.
+     *
+     * @param channel the zip file this directory was read from
+     * @param out     stream to write to
+     * @param shift   amount to add to each local header offset
+     * @return the number of bytes written
+     * @throws IOException
+     * @throws CtxException if the directory is corrupt
+     */
+    long writeHeaders(FileChannel channel, OutputStream out, long shift) throws IOException {
+        InputStream stream = new BufferedInputStream(Channels.newInputStream(channel.position(offset)), 64 * 1024);
+        DataInputStream in = new DataInputStream(stream);
+        ByteBuffer header = ByteBuffer.allocate(CENTRAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        long[] values = new long[3];
+        long written = 0;
+        long remaining = size;
+        for (long i = 0; i < count; i++) {
+            if (remaining < CENTRAL_HEADER_SIZE)
+                throw new CtxException("Central directory is corrupt in: " + path);
+            in.readFully(header.array());
+            if (header.getInt(0) != CENTRAL_HEADER_SIG)
+                throw new CtxException("Central directory is corrupt in: " + path);
+            byte[] name = new byte[header.getShort(28) & 0xffff];
+            byte[] extra = new byte[header.getShort(30) & 0xffff];
+            byte[] comment = new byte[header.getShort(32) & 0xffff];
+            in.readFully(name);
+            in.readFully(extra);
+            in.readFully(comment);
+            remaining -= CENTRAL_HEADER_SIZE + name.length + extra.length + comment.length;
+
+            // Find the values held in the Zip64 field, which only has the ones too large for the header
+            long compressedSize = header.getInt(SIZE_FIELD) & 0xffffffffL;
+            long uncompressedSize = header.getInt(SIZE_FIELD + 4) & 0xffffffffL;
+            long localOffset = header.getInt(OFFSET_FIELD) & 0xffffffffL;
+            int offsetIndex = (uncompressedSize == ZIP64_MAGIC ? 1 : 0) + (compressedSize == ZIP64_MAGIC ? 1 : 0);
+            if (uncompressedSize == ZIP64_MAGIC || compressedSize == ZIP64_MAGIC || localOffset == ZIP64_MAGIC) {
+                ByteBuffer zip64 = findZip64(extra);
+                if (zip64 == null)
+                    throw new CtxException("Zip64 field missing from central directory in: " + path);
+                if (uncompressedSize == ZIP64_MAGIC)
+                    uncompressedSize = zip64.getLong();
+                if (compressedSize == ZIP64_MAGIC)
+                    compressedSize = zip64.getLong();
+                if (localOffset == ZIP64_MAGIC)
+                    localOffset = zip64.getLong();
+            }
+            long moved = localOffset + shift;
+
+            // Rebuild the Zip64 field when the offset changes how it is stored
+            if ((localOffset >= ZIP64_MAGIC) != (moved >= ZIP64_MAGIC)) {
+                int n = 0;
+                if (uncompressedSize >= ZIP64_MAGIC)
+                    values[n++] = uncompressedSize;
+                if (compressedSize >= ZIP64_MAGIC)
+                    values[n++] = compressedSize;
+                if (moved >= ZIP64_MAGIC)
+                    values[n++] = moved;
+                byte[] others = stripZip64(extra);
+                extra = n > 0 ? zip64Extra(others != null ? others : new byte[0], values, n) :
+                        (others != null ? others : new byte[0]);
+                if (extra.length > 0xffff)
+                    throw new CtxException("Extra field too large to add Zip64 offset in: " + path);
+                header.putShort(30, (short) extra.length);
+                if (n > 0) {
+                    // Version made by has the host system in the high byte
+                    int madeBy = header.getShort(4) & 0xffff;
+                    if ((madeBy & 0xff) < 45)
+                        header.putShort(4, (short) ((madeBy & 0xff00) | 45));
+                    header.putShort(6, (short) Math.max(header.getShort(6) & 0xffff, 45));
+                }
+            } else if (moved >= ZIP64_MAGIC) {
+                // Already held in the Zip64 field, after any sizes held there
+                findZip64(extra).putLong(offsetIndex * 8, moved);
+            }
+            header.putInt(OFFSET_FIELD, (int) Math.min(moved, ZIP64_MAGIC));
+
+            out.write(header.array());
+            out.write(name);
+            out.write(extra);
+            out.write(comment);
+            written += CENTRAL_HEADER_SIZE + name.length + extra.length + comment.length;
+        }
+        return written;
+    }
+
+    /**
+     * Stream the central headers in order, for reading entries as they are stored
+     *
+     * @param channel the zip file this directory was read from, its position is moved
+     * @return the headers, positioned before the first
+     * @throws IOException
+     */
+    Headers headers(FileChannel channel) throws IOException {
+        return new Headers(channel);
+    }
+
+    /**
+     * Reader over the central headers, holding the fields of the current header. The name buffer is reused.
+     */
+    class Headers {
+        private final DataInputStream in;
+        private final ByteBuffer header = ByteBuffer.allocate(CENTRAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private long remaining = count;
+
+        byte[] name = new byte[256];
+        int nameLength;
+        long crc;
+        long compressedSize;
+        long size;
+        long localOffset;
+
+        private Headers(FileChannel channel) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(offset)),
+                    64 * 1024));
+        }
+
+        /**
+         * Move to the next header
+         *
+         * @return false if there are no more
+         * @throws IOException
+         * @throws CtxException if the directory is corrupt
+         */
+        boolean next() throws IOException {
+            if (remaining == 0)
+                return false;
+            remaining--;
+            in.readFully(header.array());
+            if (header.getInt(0) != CENTRAL_HEADER_SIG)
+                throw new CtxException("Central directory is corrupt in: " + path);
+            nameLength = header.getShort(28) & 0xffff;
+            int extraLength = header.getShort(30) & 0xffff;
+            if (name.length < nameLength)
+                name = new byte[nameLength];
+            in.readFully(name, 0, nameLength);
+
+            crc = header.getInt(16) & 0xffffffffL;
+            compressedSize = header.getInt(SIZE_FIELD) & 0xffffffffL;
+            size = header.getInt(SIZE_FIELD + 4) & 0xffffffffL;
+            localOffset = header.getInt(OFFSET_FIELD) & 0xffffffffL;
+            if (size == ZIP64_MAGIC || compressedSize == ZIP64_MAGIC || localOffset == ZIP64_MAGIC) {
+                // The Zip64 field holds just the values that did not fit, in this order
+                byte[] extra = new byte[extraLength];
+                in.readFully(extra);
+                ByteBuffer zip64 = findZip64(extra);
+                if (zip64 == null)
+                    throw new CtxException("Zip64 field missing from central directory in: " + path);
+                int at = 0;
+                if (size == ZIP64_MAGIC)
+                    size = zip64.getLong(8 * at++);
+                if (compressedSize == ZIP64_MAGIC)
+                    compressedSize = zip64.getLong(8 * at++);
+                if (localOffset == ZIP64_MAGIC)
+                    localOffset = zip64.getLong(8 * at);
+            } else {
+                skipFully(extraLength);
+            }
+            skipFully(header.getShort(32) & 0xffff);
+            return true;
+        }
+
+        private void skipFully(int length) throws IOException {
+            while (length > 0) {
+                int skipped = in.skipBytes(length);
+                if (skipped <= 0)
+                    throw new IOException("Unexpected end of file");
+                length -= skipped;
+            }
+        }
+    }
+
+    /**
+     * Find where the data of an entry starts from its local header
+     *
+     * @param channel     the zip file
+     * @param localOffset offset of the entry's local header
+     * @return offset of the entry data, or -1 if there is no local header at the offset, as when the zip has data
+     * before it that the offsets don't allow for
+     * @throws IOException
+     */
+    static long dataOffset(FileChannel channel, long localOffset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        if (localOffset + LOCAL_HEADER_SIZE > channel.size())
+            return -1;
+        readFully(channel, header, localOffset);
+        if (header.getInt(0) != LOCAL_HEADER_SIG)
+            return -1;
+        return localOffset + LOCAL_HEADER_SIZE + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+    }
+
+    /**
+     * Write the end of central directory records for a zip
+     *
+     * @param out     stream to write to
+     * @param count   number of entries
+     * @param size    size of the central directory
+     * @param offset  offset of the central directory
+     * @param comment comment for the zip, at most 64K
+     * @throws IOException
+     */
+    static void writeEnd(OutputStream out, long count, long size, long offset, byte[] comment) throws IOException {
+        ZipWriter.writeEnd(out, count, size, offset, offset + size, comment);
+    }
+
+    /**
+     * Locate the Zip64 field in extra field data
+     *
+     * @param extra the extra field data
+     * @return buffer over the field values positioned at the first, or null if there is no Zip64 field
+     */
+    private static ByteBuffer findZip64(byte[] extra) {
+        ByteBuffer buffer = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+        int at = 0;
+        while (at + 4 <= extra.length) {
+            int id = buffer.getShort(at) & 0xffff;
+            int length = buffer.getShort(at + 2) & 0xffff;
+            if (at + 4 + length > extra.length)
+                break;
+            if (id == ZIP64_EXTRA_ID)
+                return ByteBuffer.wrap(extra, at + 4, length).slice().order(ByteOrder.LITTLE_ENDIAN);
+            at += 4 + length;
+        }
+        return null;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1)
+                throw new IOException("Unexpected end of file");
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2015 Kevin Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.keng.scalashade;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.zip.ZipEntry;
+
+/**
+ * Minimal zip writer for entries that have already been compressed. As the CRC & sizes are known before the
+ * entry is written the local headers are complete, no data descriptors are needed, so the output can be written
+ * to any stream including stdout.
+ * <p/>
+ * Zip64 records are added only where a size, offset or count does not fit the original format, so jars within
+ * the limits are written exactly as before. The central headers are written to a buffer as each entry is written,
+ * which spills to a temporary file, so the directory of a jar with millions of entries is not held on the heap.
+ */
+class ZipWriter {
+
+    /**
+     * A compressed entry ready for writing
+     */
+    static class Entry {
+        final String name;
+        final long time;
+        final int method;
+        final long crc;
+        final long size;
+        final SpillBuffer data;
+        byte[] extra = null;
+        String comment = null;
+
+        /**
+         * Construct entry
+         *
+         * @param name       the entry name
+         * @param time       modification time in Java millis
+         * @param method     ZipEntry.STORED or ZipEntry.DEFLATED
+         * @param crc        CRC-32 of the uncompressed data
+         * @param size       size of the uncompressed data
+         * @param data       the (possibly compressed) entry data
+         */
+        Entry(String name, long time, int method, long crc, long size, SpillBuffer data) {
+            this.name = name;
+            this.time = time;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+        }
+
+        /**
+         * Carry over metadata from the entry this was read from
+         *
+         * @param extra   extra field data, any Zip64 field is dropped as it is recreated if needed, may be null
+         * @param comment the entry comment, may be null
+         * @return this entry
+         */
+        Entry withMetadata(byte[] extra, String comment) {
+            this.extra = stripZip64(extra);
+            this.comment = comment;
+            return this;
+        }
+    }
+
+    static final int LOCAL_HEADER_SIG = 0x04034b50;
+    static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    static final int ZIP64_END_SIG = 0x06064b50;
+    static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    static final int END_SIG = 0x06054b50;
+    static final int ZIP64_EXTRA_ID = 0x0001;
+    static final long ZIP64_MAGIC = 0xffffffffL;
+    static final int ZIP64_MAGIC_COUNT = 0xffff;
+    private static final int UTF8_FLAG = 0x800;
+    private static final int ZIP64_VERSION = 45;
+
+    /**
+     * Central directory held in memory up to this size, beyond it spills to disk
+     */
+    private static final long DIRECTORY_MEMORY = 1024 * 1024;
+
+    private final OutputStream out;
+    private final String path;
+    private final SpillBuffer directory = new SpillBuffer(DIRECTORY_MEMORY);
+    private final byte[] header = new byte[64];
+    private final long[] zip64 = new long[3];
+    private long count = 0;
+    private long written = 0;
+    private byte[] comment = new byte[0];
+
+    /**
+     * Construct a writer
+     *
+     * @param out  stream to write zip onto, should be buffered
+     * @param path name of the zip, just for error reporting
+     */
+    ZipWriter(OutputStream out, String path) {
+        this.out = out;
+        this.path = path;
+    }
+
+    /**
+     * Set the comment for the zip as a whole
+     *
+     * @param comment the comment, may be null
+     */
+    void setComment(String comment) {
+        byte[] bytes = comment != null ? comment.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        this.comment = bytes.length <= 0xffff ? bytes : new byte[0];
+    }
+
+    /**
+     * Write an entry
+     *
+     * @param entry the entry to write
+     * @throws CtxException
+     */
+    void write(Entry entry) {
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        byte[] comment = entry.comment != null ? entry.comment.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        byte[] extra = entry.extra != null ? entry.extra : new byte[0];
+        int flags = isAscii(name) && isAscii(comment) ? 0 : UTF8_FLAG;
+        int dosTime = dosTime(entry.time);
+        long compressedSize = entry.data.size();
+        long offset = written;
+        try {
+            // Local header, Zip64 needs both sizes when either is too large
+            boolean bigEntry = entry.size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC;
+            byte[] localExtra = bigEntry ? zip64Extra(extra, new long[]{entry.size, compressedSize}, 2) : extra;
+            if (localExtra.length > 0xffff)
+                throw new CtxException("Extra field too large for entry " + entry.name + " in: " + path);
+            int at = 0;
+            at = put32(header, at, LOCAL_HEADER_SIG);
+            at = put16(header, at, bigEntry ? ZIP64_VERSION : versionNeeded(entry.method));
+            at = put16(header, at, flags);
+            at = put16(header, at, entry.method);
+            at = put32(header, at, dosTime);
+            at = put32(header, at, (int) entry.crc);
+            at = put32(header, at, (int) (bigEntry ? ZIP64_MAGIC : compressedSize));
+            at = put32(header, at, (int) (bigEntry ? ZIP64_MAGIC : entry.size));
+            at = put16(header, at, name.length);
+            at = put16(header, at, localExtra.length);
+            writeBytes(header, at);
+            writeBytes(name, name.length);
+            writeBytes(localExtra, localExtra.length);
+            entry.data.writeTo(out);
+            written += compressedSize;
+
+            // Central header, Zip64 holds just the fields that don't fit
+            int values = 0;
+            if (entry.size >= ZIP64_MAGIC)
+                zip64[values++] = entry.size;
+            if (compressedSize >= ZIP64_MAGIC)
+                zip64[values++] = compressedSize;
+            if (offset >= ZIP64_MAGIC)
+                zip64[values++] = offset;
+            byte[] centralExtra = values > 0 ? zip64Extra(extra, zip64, values) : extra;
+            if (centralExtra.length > 0xffff || comment.length > 0xffff)
+                throw new CtxException("Extra field or comment too large for entry " + entry.name + " in: " + path);
+            at = 0;
+            at = put32(header, at, CENTRAL_HEADER_SIG);
+            at = put16(header, at, values > 0 ? ZIP64_VERSION : 20);
+            at = put16(header, at, values > 0 ? ZIP64_VERSION : versionNeeded(entry.method));
+            at = put16(header, at, flags);
+            at = put16(header, at, entry.method);
+            at = put32(header, at, dosTime);
+            at = put32(header, at, (int) entry.crc);
+            at = put32(header, at, (int) Math.min(compressedSize, ZIP64_MAGIC));
+            at = put32(header, at, (int) Math.min(entry.size, ZIP64_MAGIC));
+            at = put16(header, at, name.length);
+            at = put16(header, at, centralExtra.length);
+            at = put16(header, at, comment.length);
+            at = put16(header, at, 0);
+            at = put16(header, at, 0);
+            at = put32(header, at, 0);
+            at = put32(header, at, (int) Math.min(offset, ZIP64_MAGIC));
+            directory.write(header, 0, at);
+            directory.write(name);
+            directory.write(centralExtra);
+            directory.write(comment);
+            count++;
+        } catch (IOException e) {
+            throw new CtxException("Could not write entry for " + entry.name + " in: " + path, e);
+        }
+    }
+
+    /**
+     * Write the central directory and close the underlying stream
+     *
+     * @throws CtxException
+     */
+    void close() {
+        try {
+            long start = written;
+            directory.close();
+            directory.writeTo(out);
+            written += directory.size();
+            writeEnd(out, count, directory.size(), start, written, comment);
+            out.close();
+        } catch (IOException e) {
+            throw new CtxException("Error closing jar : " + path, e);
+        } finally {
+            directory.release();
+        }
+    }
+
+    /**
+     * Write the end of central directory record, preceded by the Zip64 end record & locator if any of the values
+     * don't fit in it
+     *
+     * @param out     stream to write to
+     * @param count   number of entries
+     * @param size    size of the central directory
+     * @param offset  offset of the central directory
+     * @param end     offset the records will be written at, the end of the central directory
+     * @param comment comment for the zip, at most 64K
+     * @throws IOException
+     */
+    static void writeEnd(OutputStream out, long count, long size, long offset, long end, byte[] comment)
+            throws IOException {
+        byte[] record = new byte[56];
+        boolean zip64 = count >= ZIP64_MAGIC_COUNT || size >= ZIP64_MAGIC || offset >= ZIP64_MAGIC;
+        if (zip64) {
+            int at = 0;
+            at = put32(record, at, ZIP64_END_SIG);
+            at = put64(record, at, 44);
+            at = put16(record, at, ZIP64_VERSION);
+            at = put16(record, at, ZIP64_VERSION);
+            at = put32(record, at, 0);
+            at = put32(record, at, 0);
+            at = put64(record, at, count);
+            at = put64(record, at, count);
+            at = put64(record, at, size);
+            at = put64(record, at, offset);
+            out.write(record, 0, at);
+
+            at = 0;
+            at = put32(record, at, ZIP64_LOCATOR_SIG);
+            at = put32(record, at, 0);
+            at = put64(record, at, end);
+            at = put32(record, at, 1);
+            out.write(record, 0, at);
+        }
+
+        int at = 0;
+        at = put32(record, at, END_SIG);
+        at = put16(record, at, 0);
+        at = put16(record, at, 0);
+        at = put16(record, at, (int) Math.min(count, ZIP64_MAGIC_COUNT));
+        at = put16(record, at, (int) Math.min(count, ZIP64_MAGIC_COUNT));
+        at = put32(record, at, (int) Math.min(size, ZIP64_MAGIC));
+        at = put32(record, at, (int) Math.min(offset, ZIP64_MAGIC));
+        at = put16(record, at, comment.length);
+        out.write(record, 0, at);
+        out.write(comment);
+    }
+
+    /**
+     * Create extra field data starting with a Zip64 field
+     *
+     * @param extra  the other extra fields, which must not include a Zip64 field
+     * @param values the Zip64 values, in the order of the spec
+     * @param count  number of values to use
+     * @return the extra field data
+     */
+    static byte[] zip64Extra(byte[] extra, long[] values, int count) {
+        byte[] result = new byte[4 + count * 8 + extra.length];
+        int at = put16(result, 0, ZIP64_EXTRA_ID);
+        at = put16(result, at, count * 8);
+        for (int i = 0; i < count; i++)
+            at = put64(result, at, values[i]);
+        System.arraycopy(extra, 0, result, at, extra.length);
+        return result;
+    }
+
+    /**
+     * Remove any Zip64 field from extra field data
+     *
+     * @param extra the extra field data, may be null
+     * @return the data without the Zip64 field, or null if there is nothing left
+     */
+    static byte[] stripZip64(byte[] extra) {
+        if (extra == null)
+            return null;
+        ByteArrayOutputStream kept = new ByteArrayOutputStream(extra.length);
+        int at = 0;
+        while (at + 4 <= extra.length) {
+            int id = (extra[at] & 0xff) | (extra[at + 1] & 0xff) << 8;
+            int length = (extra[at + 2] & 0xff) | (extra[at + 3] & 0xff) << 8;
+            int next = Math.min(extra.length, at + 4 + length);
+            if (id != ZIP64_EXTRA_ID)
+                kept.write(extra, at, next - at);
+            at = next;
+        }
+        return kept.size() > 0 ? kept.toByteArray() : null;
+    }
+
+    private void writeBytes(byte[] bytes, int length) throws IOException {
+        out.write(bytes, 0, length);
+        written += length;
+    }
+
+    private static int versionNeeded(int method) {
+        return method == ZipEntry.DEFLATED ? 20 : 10;
+    }
+
+    private static boolean isAscii(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b < 0)
+                return false;
+        }
+        return true;
+    }
+
+    static int put16(byte[] buffer, int at, int value) {
+        buffer[at] = (byte) value;
+        buffer[at + 1] = (byte) (value >> 8);
+        return at + 2;
+    }
+
+    static int put32(byte[] buffer, int at, int value) {
+        at = put16(buffer, at, value);
+        return put16(buffer, at, value >> 16);
+    }
+
+    static int put64(byte[] buffer, int at, long value) {
+        at = put32(buffer, at, (int) value);
+        return put32(buffer, at, (int) (value >> 32));
+    }
+
+    /**
+     * Convert a Java time into MS-DOS date/time format as used in zip headers
+     *
+     * @param time Java millis
+     * @return the DOS date/time
+     */
+    static int dosTime(long time) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        int year = cal.get(Calendar.YEAR);
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+        return (year - 1980) << 25 | (cal.get(Calendar.MONTH) + 1) << 21 | cal.get(Calendar.DAY_OF_MONTH) << 16 |
+                cal.get(Calendar.HOUR_OF_DAY) << 11 | cal.get(Calendar.MINUTE) << 5 | cal.get(Calendar.SECOND) >> 1;
+    }
+}
@@ -2,6 +2,12 @@ package uk.org.keng.scalashade;
 
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
 
@@ -95,6 +101,76 @@ public class CodecTest {
         }
     }
 
+    @Test
+    public void SigCopy() {
+        ScalaSig sig = new ScalaSigClass("examples/StringType.class").getSig();
+        byte[] original = sig.asBytes();
+        ScalaSig copy = sig.copy();
+        assertArrayEquals(original, copy.asBytes());
+
+        // Replacing in the copy leaves the original alone
+        assertTrue(copy.replace("org.apache", "shaded.org.apache") > 0);
+        assertArrayEquals(original, sig.asBytes());
+        assertTrue(copy.toString().contains("name=shaded"));
+        assertFalse(sig.toString().contains("name=shaded"));
+        assertTrue(sig.replace("org.apache", "shaded.org.apache") > 0);
+        assertArrayEquals(copy.asBytes(), sig.asBytes());
+    }
+
+    @Test
+    public void Prefilter() {
+        // Names at every offset must be found
+        Random random = new Random(42);
+        byte[] name = "apache".getBytes(StandardCharsets.UTF_8);
+        SigPrefilter filter = new SigPrefilter(Arrays.asList("org.apache"));
+        SigPrefilter other = new SigPrefilter(Arrays.asList("com.example"));
+        for (int offset = 0; offset < 20; offset++) {
+            byte[] raw = new byte[offset + 40];
+            random.nextBytes(raw);
+            System.arraycopy(name, 0, raw, offset, name.length);
+            System.arraycopy("org".getBytes(StandardCharsets.UTF_8), 0, raw, raw.length - 3, 3);
+            String encoded = Encoding.encode(raw);
+            assertTrue(filter.mayMatch(encoded));
+            assertTrue(encoded.contains(SigPrefilter.pattern(name, offset % 7)));
+        }
+
+        // Every component is needed
+        assertFalse(filter.mayMatch(Encoding.encode("apache".getBytes(StandardCharsets.UTF_8))));
+        assertFalse(other.mayMatch(Encoding.encode("org.apache".getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void PrefilterZeroGroup() {
+        // U+00FF is C3 BF in UTF-8, which holds a run of seven set bits at some alignments. Those groups encode as 0,
+        // which ASM hands back as '\u0000'.
+        Random random = new Random(7);
+        byte[] name = "\u00ff\u00ff".getBytes(StandardCharsets.UTF_8);
+        SigPrefilter filter = new SigPrefilter(Arrays.asList("\u00ff\u00ff"));
+        boolean zeroGroup = false;
+        for (int offset = 0; offset < 14; offset++) {
+            byte[] raw = new byte[offset + 20];
+            random.nextBytes(raw);
+            System.arraycopy(name, 0, raw, offset, name.length);
+            String encoded = Encoding.encode(raw).replace("\u00c0\u0080", "\u0000");
+            zeroGroup |= SigPrefilter.pattern(name, offset % 7).indexOf('\u0000') != -1;
+            assertEquals(contains(Encoding.decode(encoded), name), filter.mayMatch(encoded));
+            assertTrue(filter.mayMatch(encoded));
+        }
+        assertTrue(zeroGroup);
+    }
+
+    private static boolean contains(byte[] bytes, byte[] part) {
+        outer:
+        for (int i = 0; i + part.length <= bytes.length; i++) {
+            for (int j = 0; j < part.length; j++) {
+                if (bytes[i + j] != part[j])
+                    continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
 /*
     @Test
     public void newCodec() {
@@ -0,0 +1,177 @@
+package uk.org.keng.scalashade;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Generates jars of synthetic classes for benchmarking. Scala classes carry a @ScalaSignature built from a table of
+ * random term names and other entries, plus an ExtModClassRef chain for a namespace that either starts with the
+ * relocated namespace (org.apache) or does not (com.example). Java classes are similar but have no signature.
+ * <p/>
+ * Settings are given as name=value arguments, see the fields for names and defaults.
+ */
+public class CorpusGenerator {
+    static final String FROM = "org.apache";
+    static final String TO = "shaded.org.apache";
+
+    int classes = 20000;
+    double scalaRatio = 0.8;
+    int signatureSize = 2048;
+    int namespaceDepth = 4;
+    double relocateFraction = 0.3;
+    long seed = 1;
+
+    private static final String[] WORDS = {"spark", "sql", "types", "catalyst", "expressions", "util", "internal",
+            "collection", "mutable", "immutable", "execution", "streaming", "rdd", "storage", "scheduler", "api"};
+
+    /**
+     * Apply name=value settings
+     *
+     * @param args settings to apply, unknown names are rejected
+     * @return this
+     */
+    CorpusGenerator configure(String[] args) {
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            String name = split == -1 ? arg : arg.substring(0, split);
+            String value = arg.substring(split + 1);
+            if (name.equals("classes"))
+                classes = Integer.parseInt(value);
+            else if (name.equals("scalaRatio"))
+                scalaRatio = Double.parseDouble(value);
+            else if (name.equals("signatureSize"))
+                signatureSize = Math.min(Integer.parseInt(value), 40000);
+            else if (name.equals("namespaceDepth"))
+                namespaceDepth = Math.max(2, Integer.parseInt(value));
+            else if (name.equals("relocateFraction"))
+                relocateFraction = Double.parseDouble(value);
+            else if (name.equals("seed"))
+                seed = Long.parseLong(value);
+            else
+                throw new IllegalArgumentException("Unknown setting: " + arg);
+        }
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "classes=" + classes + " scalaRatio=" + scalaRatio + " signatureSize=" + signatureSize +
+                " namespaceDepth=" + namespaceDepth + " relocateFraction=" + relocateFraction + " seed=" + seed;
+    }
+
+    /**
+     * Write a corpus jar
+     *
+     * @param jar where to write it
+     * @throws IOException
+     */
+    void generate(File jar) throws IOException {
+        Random random = new Random(seed);
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        try {
+            for (int i = 0; i < classes; i++) {
+                boolean scala = random.nextDouble() < scalaRatio;
+                boolean relocate = scala && random.nextDouble() < relocateFraction;
+                String name = "bench/p" + (i % 100) + "/C" + i;
+                out.putNextEntry(new JarEntry(name + ".class"));
+                out.write(classBytes(name, scala ? signature(random, relocate) : null, random));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private String[] namespace(Random random, boolean relocate) {
+        String[] components = new String[namespaceDepth];
+        String[] base = relocate ? FROM.split("\\.") : new String[]{"com", "example"};
+        for (int i = 0; i < components.length; i++)
+            components[i] = i < base.length ? base[i] : WORDS[random.nextInt(WORDS.length)];
+        return components;
+    }
+
+    private byte[] signature(Random random, boolean relocate) throws IOException {
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        int entries = 0;
+
+        // Namespace chain, each ExtModClassRef refers to its term name and parent
+        int parent = -1;
+        for (String component : namespace(random, relocate)) {
+            new TermNameEntry(component).write(table);
+            new ExtModClassRefEntry(entries, parent).write(table);
+            parent = entries + 1;
+            entries += 2;
+        }
+
+        // Pad out with a mix of names and other entries
+        while (table.size() < signatureSize) {
+            if (random.nextBoolean()) {
+                new TermNameEntry(WORDS[random.nextInt(WORDS.length)] + random.nextInt(1000)).write(table);
+            } else {
+                byte[] raw = new byte[2 + random.nextInt(8)];
+                random.nextBytes(raw);
+                new RawEntry(2 + random.nextInt(8), raw).write(table);
+            }
+            entries++;
+        }
+
+        ByteArrayOutputStream sig = new ByteArrayOutputStream();
+        Nat.write(5, sig);
+        Nat.write(0, sig);
+        Nat.write(entries, sig);
+        table.writeTo(sig);
+        return sig.toByteArray();
+    }
+
+    private static byte[] classBytes(String name, byte[] signature, Random random) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null);
+        if (signature != null) {
+            AnnotationVisitor av = cw.visitAnnotation("Lscala/reflect/ScalaSignature;", true);
+            av.visit("bytes", Encoding.encode(signature));
+            av.visitEnd();
+        }
+
+        MethodVisitor init = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(Opcodes.ALOAD, 0);
+        init.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        init.visitInsn(Opcodes.RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        int methods = 4 + random.nextInt(16);
+        for (int m = 0; m < methods; m++) {
+            MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "m" + m, "()Ljava/lang/String;", null, null);
+            mv.visitCode();
+            mv.visitLdcInsn(WORDS[random.nextInt(WORDS.length)] + m);
+            mv.visitInsn(Opcodes.ARETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: CorpusGenerator <output.jar> [name=value ...]");
+            System.exit(1);
+        }
+        String[] settings = new String[args.length - 1];
+        System.arraycopy(args, 1, settings, 0, settings.length);
+        CorpusGenerator generator = new CorpusGenerator().configure(settings);
+        generator.generate(new File(args[0]));
+        System.out.println("Generated " + args[0] + " with " + generator);
+    }
+}
@@ -0,0 +1,783 @@
+package uk.org.keng.scalashade;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.CRC32;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+
+public class JarShadeTest {
+
+    static final File sampleJar = new File("examples/StringType.jar");
+
+    public static Map<String, byte[]> readJar(byte[] jar) throws IOException {
+        Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(jar));
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+            contents.put(entry.getName(), FileUtil.readFully(zis));
+        }
+        return contents;
+    }
+
+    public static byte[] readFile(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return FileUtil.readFully(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    public static boolean isShaded(byte[] clazz) {
+        ScalaSigClass sigClass = new ScalaSigClass("test", new ByteArrayInputStream(clazz));
+        return sigClass.getSig().toString().contains("name=shaded");
+    }
+
+    public static byte[] writeJar(Map<String, byte[]> contents, boolean stored) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(out);
+        for (Map.Entry<String, byte[]> e : contents.entrySet()) {
+            ZipEntry entry = new ZipEntry(e.getKey());
+            if (stored) {
+                CRC32 crc = new CRC32();
+                crc.update(e.getValue());
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(e.getValue().length);
+                entry.setCrc(crc.getValue());
+            }
+            zos.putNextEntry(entry);
+            zos.write(e.getValue());
+            zos.closeEntry();
+        }
+        zos.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void StreamMatchesFile() throws IOException {
+        File out = File.createTempFile("shaded", ".jar");
+        out.deleteOnExit();
+        new JarShade(sampleJar).writeTo(out, RuleSet.of("org.apache", "shaded.org.apache"), false);
+        Map<String, byte[]> fromFile = readJar(readFile(out));
+
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        new JarShade(new FileInputStream(sampleJar), "test").writeTo(streamed, RuleSet.of("org.apache", "shaded.org.apache"), false);
+        Map<String, byte[]> fromStream = readJar(streamed.toByteArray());
+
+        assertEquals(3, fromStream.size());
+        assertEquals(fromFile.keySet(), fromStream.keySet());
+        for (String name : fromFile.keySet()) {
+            assertArrayEquals(fromFile.get(name), fromStream.get(name));
+        }
+        assertTrue(isShaded(fromStream.get("StringType.class")));
+    }
+
+    @Test
+    public void Compression() throws IOException {
+        for (String option : new String[]{"stored", "1", "9"}) {
+            File out = File.createTempFile("shaded", ".jar");
+            out.deleteOnExit();
+            JarShade shade = new JarShade(sampleJar);
+            shade.setCompression(EntryCompressor.forOption(option));
+            shade.writeTo(out, RuleSet.of("org.apache", "shaded.org.apache"), false);
+
+            ZipFile zip = new ZipFile(out);
+            try {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (option.equals("stored") || entry.getSize() == 0)
+                        assertEquals(ZipEntry.STORED, entry.getMethod());
+                    else
+                        assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+                }
+                assertTrue(isShaded(FileUtil.readFully(zip.getInputStream(zip.getEntry("StringType.class")))));
+            } finally {
+                zip.close();
+            }
+        }
+    }
+
+    @Test
+    public void NestedJars() throws IOException {
+        byte[] clazz = readFile(new File("examples/StringType.class"));
+        Map<String, byte[]> inner = new HashMap<String, byte[]>();
+        inner.put("a/StringType.class", clazz);
+        Map<String, byte[]> plain = new HashMap<String, byte[]>();
+        plain.put("readme.txt", "nothing to see".getBytes("UTF-8"));
+        byte[] plainJar = writeJar(plain, false);
+
+        Map<String, byte[]> outer = new HashMap<String, byte[]>();
+        outer.put("BOOT-INF/lib/inner.jar", writeJar(inner, false));
+        outer.put("lib/plain.jar", plainJar);
+        File in = File.createTempFile("fat", ".jar");
+        in.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(in);
+        fos.write(writeJar(outer, true));
+        fos.close();
+
+        File out = File.createTempFile("shaded", ".jar");
+        out.deleteOnExit();
+        new JarShade(in).writeTo(out, RuleSet.of("org.apache", "shaded.org.apache"), false);
+
+        ZipFile zip = new ZipFile(out);
+        try {
+            assertEquals(ZipEntry.STORED, zip.getEntry("BOOT-INF/lib/inner.jar").getMethod());
+            assertEquals(ZipEntry.STORED, zip.getEntry("lib/plain.jar").getMethod());
+            byte[] innerJar = FileUtil.readFully(zip.getInputStream(zip.getEntry("BOOT-INF/lib/inner.jar")));
+            assertTrue(isShaded(readJar(innerJar).get("a/StringType.class")));
+            assertArrayEquals(plainJar, FileUtil.readFully(zip.getInputStream(zip.getEntry("lib/plain.jar"))));
+        } finally {
+            zip.close();
+        }
+    }
+
+    @Test
+    public void Merge() throws IOException {
+        byte[] clazz = readFile(new File("examples/StringType.class"));
+        Map<String, byte[]> first = new HashMap<String, byte[]>();
+        first.put("niddshade/apache/spark/sql/types/StringType.class", clazz);
+        first.put("META-INF/services/org.apache.Service", "org.apache.First\n".getBytes("UTF-8"));
+        first.put("META-INF/SIGNER.SF", "signed".getBytes("UTF-8"));
+        first.put("same.txt", "same".getBytes("UTF-8"));
+        first.put("differs.txt", "first".getBytes("UTF-8"));
+        Map<String, byte[]> second = new HashMap<String, byte[]>();
+        second.put("META-INF/services/org.apache.Service", "# comment\norg.apache.Second\n".getBytes("UTF-8"));
+        second.put("same.txt", "same".getBytes("UTF-8"));
+        second.put("differs.txt", "second".getBytes("UTF-8"));
+
+        List<File> jars = new ArrayList<File>();
+        for (Map<String, byte[]> contents : Arrays.asList(first, second)) {
+            File jar = File.createTempFile("merge", ".jar");
+            jar.deleteOnExit();
+            FileOutputStream fos = new FileOutputStream(jar);
+            fos.write(writeJar(contents, false));
+            fos.close();
+            jars.add(jar);
+        }
+
+        File out = File.createTempFile("merged", ".jar");
+        out.deleteOnExit();
+        RuleSet rules = RuleSet.of("org.apache", "shaded.org.apache").add("niddshade", "shaded.niddshade");
+        new JarShade(jars, EntryMerger.ConflictPolicy.FIRST).writeTo(out, rules, false);
+
+        Map<String, byte[]> merged = readJar(readFile(out));
+        byte[] relocated = merged.get("shaded/niddshade/apache/spark/sql/types/StringType.class");
+        assertTrue(isShaded(relocated));
+        assertEquals("shaded/niddshade/apache/spark/sql/types/StringType", new ClassReader(relocated).getClassName());
+        assertEquals("shaded.org.apache.First\nshaded.org.apache.Second\n",
+                new String(merged.get("META-INF/services/shaded.org.apache.Service"), "UTF-8"));
+        assertEquals("first", new String(merged.get("differs.txt"), "UTF-8"));
+        assertEquals("same", new String(merged.get("same.txt"), "UTF-8"));
+        assertFalse(merged.containsKey("META-INF/SIGNER.SF"));
+        assertFalse(merged.containsKey("niddshade/apache/spark/sql/types/StringType.class"));
+        for (String directory : new String[]{"shaded/", "shaded/niddshade/", "shaded/niddshade/apache/spark/sql/types/"})
+            assertEquals(0, merged.get(directory).length);
+
+        try {
+            new JarShade(jars, EntryMerger.ConflictPolicy.FAIL).writeTo(out, rules, false);
+            assertTrue(false);
+        } catch (CtxException e) {
+            assertTrue(e.getMessage().contains("differs.txt"));
+        }
+    }
+
+    @Test
+    public void Sharded() throws IOException {
+        byte[] clazz = readFile(new File("examples/StringType.class"));
+        Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        Random random = new Random(1);
+        for (int i = 0; i < 40; i++) {
+            contents.put("a" + i + "/StringType.class", clazz);
+            byte[] resource = new byte[random.nextInt(20000)];
+            random.nextBytes(resource);
+            contents.put("r" + i + ".bin", resource);
+        }
+        File in = File.createTempFile("large", ".jar");
+        in.deleteOnExit();
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(in));
+        zos.setComment("sharded input");
+        for (Map.Entry<String, byte[]> e : contents.entrySet()) {
+            zos.putNextEntry(new ZipEntry(e.getKey()));
+            zos.write(e.getValue());
+        }
+        zos.close();
+
+        // Both marked, the sharded output gains the same marker as a final segment
+        RuleSet rules = RuleSet.of("org.apache", "shaded.org.apache");
+        File single = File.createTempFile("single", ".jar");
+        single.deleteOnExit();
+        JarShade jarShade = new JarShade(in);
+        jarShade.setMarked(true);
+        jarShade.writeTo(single, rules, false);
+        File sharded = File.createTempFile("sharded", ".jar");
+        sharded.deleteOnExit();
+        ShardShade shardShade = new ShardShade(in, 3);
+        shardShade.setMarked(true);
+        shardShade.setOffHeap(true);
+        shardShade.writeTo(sharded, rules, false);
+
+        // Same entries in the same order with the same content
+        ZipFile singleZip = new ZipFile(single);
+        ZipFile shardedZip = new ZipFile(sharded);
+        try {
+            Enumeration<? extends ZipEntry> expected = singleZip.entries();
+            Enumeration<? extends ZipEntry> actual = shardedZip.entries();
+            while (expected.hasMoreElements()) {
+                ZipEntry entry = expected.nextElement();
+                assertEquals(entry.getName(), actual.nextElement().getName());
+                assertArrayEquals(FileUtil.readFully(singleZip.getInputStream(entry)),
+                        FileUtil.readFully(shardedZip.getInputStream(shardedZip.getEntry(entry.getName()))));
+            }
+            assertFalse(actual.hasMoreElements());
+            assertEquals("sharded input", shardedZip.getComment());
+            assertTrue(ShadeMarker.read(shardedZip).matches(shardedZip));
+        } finally {
+            singleZip.close();
+            shardedZip.close();
+        }
+        assertTrue(isShaded(readJar(readFile(sharded)).get("a7/StringType.class")));
+
+        // Up to date so left alone
+        long modified = sharded.lastModified() - 10000;
+        assertTrue(sharded.setLastModified(modified));
+        shardShade.writeTo(sharded, rules, false);
+        assertEquals(modified, sharded.lastModified());
+    }
+
+    @Test
+    public void ShardedWorkerFails() throws IOException {
+        // Workers can't start with so small a heap, the failure is reported and no segments are left behind
+        File dir = Files.createTempDirectory("sharded").toFile();
+        ShardShade shardShade = new ShardShade(sampleJar, 2);
+        shardShade.setHeapMB(1);
+        try {
+            shardShade.writeTo(new File(dir, "out.jar"), RuleSet.of("org.apache", "shaded.org.apache"), false);
+            assertTrue(false);
+        } catch (CtxException e) {
+            assertTrue(e.getMessage().contains("failed with exit code"));
+        }
+        assertEquals(0, dir.list().length);
+        assertTrue(dir.delete());
+    }
+
+    @Test
+    public void BoundedInFlight() throws IOException {
+        Random random = new Random(1);
+        Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        byte[] clazz = readFile(new File("examples/StringType.class"));
+        for (int i = 0; i < 200; i++) {
+            contents.put("p/StringType" + i + ".class", clazz);
+        }
+        byte[] large = new byte[1024 * 1024];
+        random.nextBytes(large);
+        contents.put("large.bin", large);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JarShade shade = new JarShade(new ByteArrayInputStream(writeJar(contents, false)), "test");
+        shade.setThreads(4);
+        shade.setMaxInFlight(256 * 1024);
+        shade.writeTo(out, RuleSet.of("org.apache", "shaded.org.apache"), false);
+        assertTrue(shade.getPeakInFlight() <= 256 * 1024);
+
+        Map<String, byte[]> shaded = readJar(out.toByteArray());
+        assertEquals(contents.keySet(), shaded.keySet());
+        assertArrayEquals(large, shaded.get("large.bin"));
+        assertFalse(isShaded(clazz));
+        for (int i = 0; i < 200; i++) {
+            assertTrue(isShaded(shaded.get("p/StringType" + i + ".class")));
+        }
+    }
+
+    @Test
+    public void Zip64EntryCount() throws IOException {
+        // More entries than the original zip format can count, with metadata that should be carried through
+        int count = 70000;
+        File in = File.createTempFile("many", ".jar");
+        in.deleteOnExit();
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(in));
+        zos.setComment("archive comment");
+        ZipEntry sigEntry = new ZipEntry("StringType.class");
+        sigEntry.setComment("entry comment");
+        sigEntry.setExtra(new byte[]{0x66, 0x66, 2, 0, 1, 2});
+        sigEntry.setTime(946684800000L);
+        zos.putNextEntry(sigEntry);
+        zos.write(readFile(new File("examples/StringType.class")));
+        for (int i = 0; i < count; i++) {
+            zos.putNextEntry(new ZipEntry("e/" + i + ".txt"));
+            zos.write(Integer.toString(i).getBytes("UTF-8"));
+        }
+        zos.close();
+
+        RuleSet rules = RuleSet.of("org.apache", "shaded.org.apache");
+        File out = File.createTempFile("many-shaded", ".jar");
+        out.deleteOnExit();
+        new JarShade(in).writeTo(out, rules, false);
+        checkManyEntries(out, count);
+        ZipFile zip = new ZipFile(out);
+        try {
+            assertEquals("archive comment", zip.getComment());
+            ZipEntry entry = zip.getEntry("StringType.class");
+            assertEquals("entry comment", entry.getComment());
+            assertArrayEquals(new byte[]{0x66, 0x66, 2, 0, 1, 2}, entry.getExtra());
+            assertEquals(946684800000L, entry.getTime());
+        } finally {
+            zip.close();
+        }
+
+        // Stitched segments must also move to Zip64
+        File first = File.createTempFile("segment", ".jar");
+        first.deleteOnExit();
+        File second = File.createTempFile("segment", ".jar");
+        second.deleteOnExit();
+        JarShade part = new JarShade(in);
+        part.setEntryRange(0, 40000);
+        part.writeTo(first, rules, false);
+        part = new JarShade(in);
+        part.setEntryRange(40000, Integer.MAX_VALUE);
+        part.writeTo(second, rules, false);
+        File stitched = File.createTempFile("stitched", ".jar");
+        stitched.deleteOnExit();
+        ShardShade.stitch(Arrays.asList(first, second), stitched);
+        checkManyEntries(stitched, count);
+    }
+
+    private static void checkManyEntries(File jar, int count) throws IOException {
+        ZipFile zip = new ZipFile(jar);
+        try {
+            assertEquals(count + 1, zip.size());
+            assertTrue(isShaded(FileUtil.readFully(zip.getInputStream(zip.getEntry("StringType.class")))));
+            for (int i : new int[]{0, 39999, 40000, count - 1}) {
+                assertEquals(Integer.toString(i),
+                        new String(FileUtil.readFully(zip.getInputStream(zip.getEntry("e/" + i + ".txt"))), "UTF-8"));
+            }
+        } finally {
+            zip.close();
+        }
+
+        // Streaming readers only see the local headers
+        ZipInputStream zis = new ZipInputStream(new FileInputStream(jar));
+        try {
+            int seen = 0;
+            while (zis.getNextEntry() != null)
+                seen++;
+            assertEquals(count + 1, seen);
+        } finally {
+            zis.close();
+        }
+    }
+
+    /**
+     * Writes & reads back over 8GB, so only run when -Dscalashade.hugeTests=true
+     */
+    @Test
+    public void Zip64HugeArchive() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("scalashade.hugeTests"));
+
+        // A deflated entry of zeros is tiny on input but over 4GB when stored, pushing the class after it past 4GB
+        long bigSize = 0x100000000L + 1024 * 1024;
+        File in = File.createTempFile("huge", ".jar");
+        in.deleteOnExit();
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(in));
+        zos.putNextEntry(new ZipEntry("big.bin"));
+        byte[] zeros = new byte[1024 * 1024];
+        for (long written = 0; written < bigSize; written += zeros.length)
+            zos.write(zeros);
+        zos.putNextEntry(new ZipEntry("StringType.class"));
+        zos.write(readFile(new File("examples/StringType.class")));
+        zos.close();
+
+        File out = File.createTempFile("huge-shaded", ".jar");
+        out.deleteOnExit();
+        try {
+            JarShade shade = new JarShade(in);
+            shade.setCompression(EntryCompressor.forOption("stored"));
+            shade.writeTo(out, RuleSet.of("org.apache", "shaded.org.apache"), false);
+            assertTrue(out.length() > bigSize);
+
+            ZipFile zip = new ZipFile(out);
+            try {
+                assertEquals(bigSize, zip.getEntry("big.bin").getSize());
+                assertTrue(isShaded(FileUtil.readFully(zip.getInputStream(zip.getEntry("StringType.class")))));
+            } finally {
+                zip.close();
+            }
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            out.delete();
+        }
+    }
+
+    @Test
+    public void PathFilterGlobs() {
+        PathFilter filter = new PathFilter().exclude("org/apache/hadoop/**").exclude("com/google/").exclude("**/*Test.class")
+                .exclude("x/?.class");
+        assertFalse(filter.accepts("org/apache/hadoop/fs/Path.class"));
+        assertTrue(filter.accepts("org/apache/hadoopx/Path.class"));
+        assertTrue(filter.accepts("org/apache/spark/sql/types/StringType.class"));
+        assertFalse(filter.accepts("com/google/common/base/Optional.class"));
+        assertFalse(filter.accepts("a/b/FooTest.class"));
+        assertFalse(filter.accepts("FooTest.class"));
+        assertTrue(filter.accepts("a/b/FooTest.class.txt"));
+        assertFalse(filter.accepts("x/A.class"));
+        assertTrue(filter.accepts("x/AB.class"));
+        assertTrue(filter.accepts("x/y/A.class"));
+
+        PathFilter included = new PathFilter().include("org/apache/*/sql/**").exclude("org/apache/spark/sql/internal/**");
+        assertTrue(included.accepts("org/apache/spark/sql/types/StringType.class"));
+        assertFalse(included.accepts("org/apache/spark/sql/internal/SQLConf.class"));
+        assertFalse(included.accepts("org/apache/a/b/sql/X.class"));
+        assertFalse(included.accepts("com/example/X.class"));
+        assertTrue(new PathFilter().accepts("anything"));
+    }
+
+    @Test
+    public void RelocateOnlyReferences() throws IOException {
+        // The namespace is only in a string constant, so the class has nothing to relocate
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "test/Holder", null, "java/lang/Object", null);
+        cw.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, "NAME", "Ljava/lang/String;", null,
+                "org/apache/spark").visitEnd();
+        cw.visitEnd();
+        byte[] clazz = cw.toByteArray();
+        RuleSet rules = RuleSet.of("org.apache", "shaded.org.apache");
+        Relocator relocator = new Relocator(rules);
+        assertTrue(relocator.mayReference(clazz, clazz.length));
+        assertNull(relocator.relocateClass("test/Holder.class", clazz, clazz.length));
+
+        File jar = File.createTempFile("holder", ".jar");
+        jar.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(jar);
+        fos.write(writeJar(Collections.singletonMap("test/Holder.class", clazz), false));
+        fos.close();
+        File out = File.createTempFile("holder", ".jar");
+        out.deleteOnExit();
+        new JarShade(Collections.singletonList(jar), EntryMerger.ConflictPolicy.FIRST).writeTo(out, rules, false);
+        assertArrayEquals(clazz, readJar(readFile(out)).get("test/Holder.class"));
+    }
+
+    @Test
+    public void FilteredEntries() throws IOException {
+        byte[] clazz = readFile(new File("examples/StringType.class"));
+        Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        contents.put("a/StringType.class", clazz);
+        contents.put("b/StringType.class", clazz);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JarShade shade = new JarShade(new ByteArrayInputStream(writeJar(contents, false)), "test");
+        shade.setFilter(new PathFilter().exclude("b/"));
+        shade.writeTo(out, RuleSet.of("org.apache", "shaded.org.apache"), false);
+
+        Map<String, byte[]> shaded = readJar(out.toByteArray());
+        assertTrue(isShaded(shaded.get("a/StringType.class")));
+        assertArrayEquals(clazz, shaded.get("b/StringType.class"));
+    }
+
+    @Test
+    public void FilteredEntriesCopied() throws IOException {
+        // Excluded entries keep the compressed data they had, so a lighter compression level shows through
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 64 * 1024)
+            text.append("word").append(random.nextInt(500)).append(' ');
+        byte[] resource = text.toString().getBytes("UTF-8");
+        File in = File.createTempFile("filtered", ".jar");
+        in.deleteOnExit();
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(in));
+        zos.setLevel(1);
+        zos.putNextEntry(new ZipEntry("a/StringType.class"));
+        zos.write(readFile(new File("examples/StringType.class")));
+        zos.putNextEntry(new ZipEntry("b/words.txt"));
+        zos.write(resource);
+        zos.close();
+
+        for (String option : new String[]{"9", "stored"}) {
+            File out = File.createTempFile("filtered", ".jar");
+            out.deleteOnExit();
+            JarShade shade = new JarShade(in);
+            shade.setCompression(EntryCompressor.forOption(option));
+            shade.setFilter(new PathFilter().exclude("b/"));
+            shade.writeTo(out, RuleSet.of("org.apache", "shaded.org.apache"), false);
+
+            ZipFile original = new ZipFile(in);
+            ZipFile zip = new ZipFile(out);
+            try {
+                ZipEntry copied = zip.getEntry("b/words.txt");
+                if (option.equals("stored")) {
+                    assertEquals(ZipEntry.STORED, copied.getMethod());
+                } else {
+                    assertEquals(ZipEntry.DEFLATED, copied.getMethod());
+                    assertEquals(original.getEntry("b/words.txt").getCompressedSize(), copied.getCompressedSize());
+                }
+                assertArrayEquals(resource, FileUtil.readFully(zip.getInputStream(copied)));
+                assertTrue(isShaded(FileUtil.readFully(zip.getInputStream(zip.getEntry("a/StringType.class")))));
+            } finally {
+                zip.close();
+                original.close();
+            }
+        }
+    }
+
+    @Test
+    public void FilteredEntriesPrefixedJar() throws IOException {
+        // A launcher script in front of the jar leaves the directory offsets out, so excluded entries are inflated
+        byte[] clazz = readFile(new File("examples/StringType.class"));
+        byte[] text = "nothing to see".getBytes("UTF-8");
+        Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        contents.put("a/StringType.class", clazz);
+        contents.put("b/readme.txt", text);
+        File in = File.createTempFile("prefixed", ".jar");
+        in.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(in);
+        fos.write("#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n".getBytes("UTF-8"));
+        fos.write(writeJar(contents, false));
+        fos.close();
+
+        File out = File.createTempFile("prefixed", ".jar");
+        out.deleteOnExit();
+        JarShade shade = new JarShade(in);
+        shade.setFilter(new PathFilter().exclude("b/"));
+        shade.writeTo(out, RuleSet.of("org.apache", "shaded.org.apache"), false);
+
+        Map<String, byte[]> shaded = readJar(readFile(out));
+        assertTrue(isShaded(shaded.get("a/StringType.class")));
+        assertArrayEquals(text, shaded.get("b/readme.txt"));
+    }
+
+    @Test
+    public void DirectorySourceAndSink() throws IOException {
+        byte[] clazz = readFile(new File("examples/StringType.class"));
+        byte[] text = "nothing to see".getBytes("UTF-8");
+        Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        contents.put("a/StringType.class", clazz);
+        contents.put("readme.txt", text);
+        RuleSet rules = RuleSet.of("org.apache", "shaded.org.apache");
+
+        // Jar unpacked into a directory
+        File dir = Files.createTempDirectory("sink").toFile();
+        new JarShade(new ByteArrayInputStream(writeJar(contents, false)), "test")
+                .writeTo(new EntrySink.Directory(dir), rules, false);
+        assertTrue(isShaded(readFile(new File(dir, "a/StringType.class"))));
+        assertArrayEquals(text, readFile(new File(dir, "readme.txt")));
+
+        // Directory packed back into a jar, the class is already shaded so left alone
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new JarShade(new EntrySource.Directory(dir)).writeTo(out, rules, false);
+        Map<String, byte[]> packed = readJar(out.toByteArray());
+        assertEquals(3, packed.size());
+        assertTrue(packed.containsKey("a/"));
+        assertArrayEquals(readFile(new File(dir, "a/StringType.class")), packed.get("a/StringType.class"));
+        assertArrayEquals(text, packed.get("readme.txt"));
+    }
+
+    @Test(expected = CtxException.class)
+    public void DirectorySinkEscape() throws IOException {
+        Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        contents.put("../escaped.txt", new byte[1]);
+        File dir = Files.createTempDirectory("sink").toFile();
+        new JarShade(new EntrySource.Memory(contents)).writeTo(new EntrySink.Directory(dir),
+                new RuleSet(), false);
+    }
+
+    @Test
+    public void Profiles() throws IOException {
+        byte[] clazz = readFile(new File("examples/StringType.class"));
+        byte[] text = "nothing to see".getBytes("UTF-8");
+        Map<String, byte[]> inner = new HashMap<String, byte[]>();
+        inner.put("b/StringType.class", clazz);
+        Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        contents.put("a/StringType.class", clazz);
+        contents.put("lib/inner.jar", writeJar(inner, false));
+        contents.put("readme.txt", text);
+        byte[] jar = writeJar(contents, false);
+
+        // Each profile must match shading with its rules alone
+        RuleSet first = RuleSet.of("org.apache", "shaded.org.apache");
+        RuleSet second = RuleSet.of("org.apache", "shaded.second.org.apache");
+        RuleSet untouched = RuleSet.of("com.example", "shaded.com.example");
+        ByteArrayOutputStream firstOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream secondOut = new ByteArrayOutputStream();
+        EntrySink.Memory untouchedOut = new EntrySink.Memory();
+        new JarShade(new ByteArrayInputStream(jar), "test").writeTo(Arrays.asList(
+                new JarShade.Profile("first", first, new EntrySink.Zip(firstOut, "first")),
+                new JarShade.Profile("second", second, new EntrySink.Zip(secondOut, "second")),
+                new JarShade.Profile("untouched", untouched, untouchedOut)), false);
+
+        for (Object[] check : new Object[][]{{first, firstOut}, {second, secondOut}}) {
+            ByteArrayOutputStream single = new ByteArrayOutputStream();
+            new JarShade(new ByteArrayInputStream(jar), "test").writeTo(single, (RuleSet) check[0], false);
+            Map<String, byte[]> expected = readJar(single.toByteArray());
+            Map<String, byte[]> actual = readJar(((ByteArrayOutputStream) check[1]).toByteArray());
+            assertEquals(expected.keySet(), actual.keySet());
+            for (String name : expected.keySet())
+                assertArrayEquals(name, expected.get(name), actual.get(name));
+            assertTrue(isShaded(actual.get("a/StringType.class")));
+        }
+        assertFalse(Arrays.equals(readJar(firstOut.toByteArray()).get("a/StringType.class"),
+                readJar(secondOut.toByteArray()).get("a/StringType.class")));
+        assertArrayEquals(clazz, untouchedOut.entries().get("a/StringType.class"));
+        assertArrayEquals(text, untouchedOut.entries().get("readme.txt"));
+    }
+
+    @Test
+    public void OffHeapBuffers() throws IOException {
+        byte[] bytes = new byte[40000];
+        new Random(7).nextBytes(bytes);
+        OffHeapArena arena = new OffHeapArena(1024 * 1024);
+
+        SpillBuffer held = SpillBuffer.read(new ByteArrayInputStream(bytes), 64 * 1024, -1, arena);
+        assertTrue(held.inMemory());
+        assertFalse(held.hasArray());
+        assertEquals(3 * OffHeapArena.SLAB_SIZE, arena.inUseBytes());
+        assertArrayEquals(bytes, FileUtil.readFully(held.openStream()));
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        held.writeTo(copy);
+        assertArrayEquals(bytes, copy.toByteArray());
+        held.release();
+        assertEquals(0, arena.inUseBytes());
+
+        // Over the limit the slabs are handed back as it spills
+        SpillBuffer spilled = SpillBuffer.read(new ByteArrayInputStream(bytes), 20000, -1, arena);
+        assertFalse(spilled.inMemory());
+        assertEquals(0, arena.inUseBytes());
+        assertArrayEquals(bytes, FileUtil.readFully(spilled.openStream()));
+        spilled.release();
+    }
+
+    @Test
+    public void OffHeapMatchesHeap() throws IOException {
+        byte[] clazz = readFile(new File("examples/StringType.class"));
+        byte[] large = new byte[300000];
+        new Random(11).nextBytes(large);
+        Map<String, byte[]> inner = new HashMap<String, byte[]>();
+        inner.put("b/StringType.class", clazz);
+        Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        contents.put("a/StringType.class", clazz);
+        contents.put("lib/inner.jar", writeJar(inner, false));
+        contents.put("large.bin", large);
+        for (int i = 0; i < 100; i++)
+            contents.put("text/" + i + ".txt", ("entry " + i).getBytes("UTF-8"));
+        byte[] jar = writeJar(contents, false);
+
+        Map<String, byte[]> expected = null;
+        for (boolean offHeap : new boolean[]{false, true}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            JarShade shade = new JarShade(new ByteArrayInputStream(jar), "test");
+            shade.setMaxInFlight(1024 * 1024);
+            shade.setOffHeap(offHeap);
+            shade.writeTo(out, RuleSet.of("org.apache", "shaded.org.apache"), false);
+            Map<String, byte[]> shaded = readJar(out.toByteArray());
+            assertTrue(isShaded(shaded.get("a/StringType.class")));
+            assertArrayEquals(large, shaded.get("large.bin"));
+            if (expected == null) {
+                expected = shaded;
+            } else {
+                assertEquals(expected.keySet(), shaded.keySet());
+                for (String name : expected.keySet())
+                    assertArrayEquals(name, expected.get(name), shaded.get(name));
+            }
+        }
+    }
+
+    @Test
+    public void Marker() throws IOException {
+        RuleSet rules = RuleSet.of("org.apache", "shaded.org.apache");
+        File out = File.createTempFile("shaded", ".jar");
+        out.deleteOnExit();
+        JarShade shade = new JarShade(sampleJar);
+        shade.setMarked(true);
+        shade.writeTo(out, rules, false);
+        Map<String, byte[]> shaded = readJar(readFile(out));
+        assertEquals(4, shaded.size());
+        assertTrue(shaded.containsKey(ShadeMarker.NAME));
+        assertTrue(isShaded(shaded.get("StringType.class")));
+
+        // Same input and rules, the output is left alone
+        assertTrue(out.setLastModified(1000000000000L));
+        shade = new JarShade(sampleJar);
+        shade.setMarked(true);
+        shade.writeTo(out, rules, false);
+        assertEquals(1000000000000L, out.lastModified());
+
+        // Shading the output again with the same rules just copies it
+        File again = File.createTempFile("shaded", ".jar");
+        again.deleteOnExit();
+        shade = new JarShade(out);
+        shade.setMarked(true);
+        shade.writeTo(again, rules, false);
+        assertArrayEquals(readFile(out), readFile(again));
+
+        // Different rules are applied, replacing the marker
+        File other = File.createTempFile("shaded", ".jar");
+        other.deleteOnExit();
+        shade = new JarShade(out);
+        shade.setMarked(true);
+        shade.writeTo(other, RuleSet.of("scala", "shaded.scala"), false);
+        Map<String, byte[]> reshaded = readJar(readFile(other));
+        assertEquals(shaded.keySet(), reshaded.keySet());
+        assertFalse(Arrays.equals(shaded.get(ShadeMarker.NAME), reshaded.get(ShadeMarker.NAME)));
+
+        // A jar changed after it was written is shaded again
+        shaded.put("extra.txt", "extra".getBytes("UTF-8"));
+        File changed = File.createTempFile("changed", ".jar");
+        changed.deleteOnExit();
+        Files.write(changed.toPath(), writeJar(shaded, false));
+        shade = new JarShade(changed);
+        shade.setMarked(true);
+        shade.writeTo(again, rules, false);
+        assertFalse(Arrays.equals(readFile(changed), readFile(again)));
+        assertEquals(5, readJar(readFile(again)).size());
+
+        // Merging onto an output marked by a plain pass relocates the classes, as does a change of compression
+        Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        contents.put("niddshade/apache/spark/sql/types/StringType.class",
+                readFile(new File("examples/StringType.class")));
+        File in = File.createTempFile("merge", ".jar");
+        in.deleteOnExit();
+        Files.write(in.toPath(), writeJar(contents, false));
+        rules = RuleSet.of("org.apache", "shaded.org.apache").add("niddshade", "shaded.niddshade");
+        shade = new JarShade(in);
+        shade.setMarked(true);
+        shade.writeTo(out, rules, false);
+        assertTrue(readJar(readFile(out)).containsKey("niddshade/apache/spark/sql/types/StringType.class"));
+        shade = new JarShade(Collections.singletonList(in), EntryMerger.ConflictPolicy.WARN);
+        shade.setMarked(true);
+        shade.writeTo(out, rules, false);
+        assertTrue(readJar(readFile(out)).containsKey("shaded/niddshade/apache/spark/sql/types/StringType.class"));
+
+        shade = new JarShade(Collections.singletonList(in), EntryMerger.ConflictPolicy.WARN);
+        shade.setMarked(true);
+        shade.setCompression(EntryCompressor.forOption("stored"));
+        shade.writeTo(out, rules, false);
+        ZipFile zip = new ZipFile(out);
+        try {
+            assertEquals(ZipEntry.STORED,
+                    zip.getEntry("shaded/niddshade/apache/spark/sql/types/StringType.class").getMethod());
+        } finally {
+            zip.close();
+        }
+    }
+}
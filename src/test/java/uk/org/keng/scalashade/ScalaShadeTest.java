@@ -0,0 +1,58 @@
+package uk.org.keng.scalashade;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class ScalaShadeTest {
+
+    @Test
+    public void ShadeClass() throws IOException {
+        byte[] clazz = JarShadeTest.readFile(new File("examples/StringType.class"));
+
+        ScalaShade unmatched = new ScalaShade().relocate("com.example", "shaded.com.example");
+        assertSame(clazz, unmatched.shadeClass("StringType", clazz));
+
+        ScalaShade matched = new ScalaShade().relocate("com.example", "shaded.com.example")
+                .relocate("org.apache", "shaded.org.apache");
+        byte[] shaded = matched.shadeClass("StringType", clazz);
+        assertTrue(JarShadeTest.isShaded(shaded));
+        assertFalse(JarShadeTest.isShaded(clazz));
+    }
+
+    @Test
+    public void ShadeEntries() throws IOException {
+        byte[] clazz = JarShadeTest.readFile(new File("examples/StringType.class"));
+        byte[] text = "nothing to see".getBytes("UTF-8");
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put("readme.txt", text);
+        entries.put("a/", new byte[0]);
+        entries.put("a/StringType.class", clazz);
+        Map<String, byte[]> inner = new LinkedHashMap<String, byte[]>();
+        inner.put("b/StringType.class", clazz);
+        entries.put("lib/inner.jar", JarShadeTest.writeJar(inner, false));
+
+        Map<String, byte[]> shaded = new ScalaShade().relocate("org.apache", "shaded.org.apache")
+                .shadeEntries(entries);
+        assertArrayEquals(entries.keySet().toArray(), shaded.keySet().toArray());
+        assertSame(text, shaded.get("readme.txt"));
+        assertEquals(0, shaded.get("a/").length);
+        assertTrue(JarShadeTest.isShaded(shaded.get("a/StringType.class")));
+        assertTrue(JarShadeTest.isShaded(JarShadeTest.readJar(shaded.get("lib/inner.jar")).get("b/StringType.class")));
+    }
+
+    @Test(expected = CtxException.class)
+    public void InvalidNamespace() {
+        new ScalaShade().relocate("org..apache", "shaded.org.apache");
+    }
+}
@@ -0,0 +1,39 @@
+package uk.org.keng.scalashade;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class ShadeAgentTest {
+
+    @Test
+    public void TransformClasses() throws IOException {
+        byte[] clazz = JarShadeTest.readFile(new File("examples/StringType.class"));
+        byte[] plain = JarShadeTest.readFile(new File("target/classes/uk/org/keng/scalashade/RuleSet.class"));
+        assertTrue(ScalaSigClass.mayHaveSignature(clazz, clazz.length));
+        assertFalse(ScalaSigClass.mayHaveSignature(plain, plain.length));
+
+        ClassLoader loader = getClass().getClassLoader();
+        ShadeTransformer transformer = new ShadeTransformer(RuleSet.of("org.apache", "shaded.org.apache"), false);
+        assertNull(transformer.transform(loader, "uk/org/keng/scalashade/RuleSet", null, null, plain));
+
+        byte[] shaded = transformer.transform(loader, "StringType", null, null, clazz);
+        assertTrue(JarShadeTest.isShaded(shaded));
+        assertEquals(1, transformer.getRewritten());
+
+        // Results are not cached, the same class from another loader is rewritten the same way
+        assertArrayEquals(shaded, transformer.transform(null, "StringType", null, null, clazz));
+        assertEquals(2, transformer.getRewritten());
+
+        ShadeTransformer unmatched = new ShadeTransformer(RuleSet.of("com.example", "shaded.com.example"), false);
+        assertNull(unmatched.transform(loader, "StringType", null, null, clazz));
+    }
+}
@@ -0,0 +1,252 @@
+package uk.org.keng.scalashade;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * End-to-end throughput benchmark, shades a generated corpus jar (see {@link CorpusGenerator}) a number of times
+ * and reports classes/sec, MB/s, peak RSS and allocation rate. Run with 'mvn -Pbench test-compile exec:exec',
+ * passing settings with -Dbench.args="classes=50000 runs=10".
+ * <p/>
+ * Besides the corpus settings it takes runs (measured runs, default 5), warmup (default 2) and threads (default the
+ * number of processors). Allocation is sampled from each thread every millisecond so is a slight underestimate.
+ * <p/>
+ * With 'agent' the corpus classes are instead defined in a fresh class loader each run, with and without passing
+ * them through the agent's transformer first, to show what the agent adds to class loading.
+ */
+public class ShadeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int runs = 5;
+        int warmup = 2;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean agent = false;
+        List<String> corpusArgs = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.startsWith("runs="))
+                runs = Integer.parseInt(arg.substring(5));
+            else if (arg.startsWith("warmup="))
+                warmup = Integer.parseInt(arg.substring(7));
+            else if (arg.startsWith("threads="))
+                threads = Integer.parseInt(arg.substring(8));
+            else if (arg.equals("agent"))
+                agent = true;
+            else if (!arg.isEmpty())
+                corpusArgs.add(arg);
+        }
+
+        // Corpus is reused between benchmark runs with the same settings
+        CorpusGenerator generator = new CorpusGenerator().configure(corpusArgs.toArray(new String[0]));
+        File dir = new File("target/bench");
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Could not create " + dir);
+        File corpus = new File(dir, "corpus-" + Integer.toHexString(generator.toString().hashCode()) + ".jar");
+        if (!corpus.exists())
+            generator.generate(corpus);
+        if (agent) {
+            agentBenchmark(corpus, generator, runs, warmup);
+            return;
+        }
+        File output = new File(dir, "shaded.jar");
+
+        RuleSet rules = RuleSet.of(CorpusGenerator.FROM, CorpusGenerator.TO);
+        double mb = corpus.length() / (1024.0 * 1024.0);
+        AllocationSampler sampler = new AllocationSampler();
+        sampler.start();
+
+        double[] seconds = new double[runs];
+        long allocated = 0;
+        for (int run = -warmup; run < runs; run++) {
+            JarShade jarShade = new JarShade(corpus);
+            jarShade.setThreads(threads);
+            long startBytes = sampler.total();
+            long start = System.nanoTime();
+            jarShade.writeTo(output, rules, false);
+            long nanos = System.nanoTime() - start;
+            if (run >= 0) {
+                seconds[run] = nanos / 1e9;
+                allocated += sampler.total() - startBytes;
+            }
+        }
+        sampler.interrupt();
+
+        Arrays.sort(seconds);
+        double median = seconds[runs / 2];
+        double total = 0;
+        for (double s : seconds)
+            total += s;
+
+        System.out.println("Corpus:          " + generator);
+        System.out.println("Corpus size:     " + String.format("%.1f", mb) + " MB");
+        System.out.println("Threads:         " + threads);
+        System.out.println("Java:            " + System.getProperty("java.version"));
+        System.out.println("Median run:      " + String.format("%.3f", median) + " s");
+        System.out.println("Classes/sec:     " + String.format("%.0f", generator.classes / median));
+        System.out.println("MB/s:            " + String.format("%.1f", mb / median));
+        System.out.println("Peak RSS:        " + peakRss() / 1024 + " MB");
+        System.out.println("Allocation rate: " + String.format("%.1f", allocated / (1024.0 * 1024.0) / total) +
+                " MB/s, " + allocated / ((long) runs * generator.classes) + " bytes/class");
+    }
+
+    /**
+     * Compare defining the corpus classes with and without the agent's transformer. Only the define is timed, a real
+     * load also reads, links & initialises the class so the overhead reported is an upper bound.
+     */
+    private static void agentBenchmark(File corpus, CorpusGenerator generator, int runs, int warmup)
+            throws IOException {
+        List<String> names = new ArrayList<String>();
+        List<byte[]> classes = new ArrayList<byte[]>();
+        ZipFile zip = new ZipFile(corpus);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.getName().endsWith(".class"))
+                    continue;
+                names.add(entry.getName().substring(0, entry.getName().length() - 6));
+                InputStream in = zip.getInputStream(entry);
+                try {
+                    classes.add(FileUtil.readFully(in));
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            zip.close();
+        }
+
+        ShadeTransformer transformer = new ShadeTransformer(RuleSet.of(CorpusGenerator.FROM, CorpusGenerator.TO),
+                false);
+        double[] plain = new double[runs];
+        double[] agent = new double[runs];
+        for (int run = -warmup; run < runs; run++) {
+            // Alternated so both see the same state of the machine
+            long plainNanos = defineAll(names, classes, null);
+            long agentNanos = defineAll(names, classes, transformer);
+            if (run >= 0) {
+                plain[run] = plainNanos / 1e9;
+                agent[run] = agentNanos / 1e9;
+            }
+        }
+        Arrays.sort(plain);
+        Arrays.sort(agent);
+        double plainMedian = plain[runs / 2];
+        double agentMedian = agent[runs / 2];
+
+        System.out.println("Corpus:          " + generator);
+        System.out.println("Java:            " + System.getProperty("java.version"));
+        System.out.println("Without agent:   " + String.format("%.3f", plainMedian) + " s");
+        System.out.println("With agent:      " + String.format("%.3f", agentMedian) + " s");
+        System.out.println("Agent overhead:  " + String.format("%.1f", (agentMedian / plainMedian - 1) * 100) +
+                "%, " + String.format("%.1f", (agentMedian - plainMedian) * 1e6 / classes.size()) + " us/class");
+    }
+
+    /**
+     * Define classes in a new loader, transforming them first if given a transformer
+     *
+     * @return nanoseconds taken
+     */
+    private static long defineAll(List<String> names, List<byte[]> classes, ShadeTransformer transformer) {
+        BenchLoader loader = new BenchLoader();
+        long start = System.nanoTime();
+        for (int i = 0; i < classes.size(); i++) {
+            byte[] bytes = classes.get(i);
+            if (transformer != null) {
+                byte[] transformed = transformer.transform(loader, names.get(i), null, null, bytes);
+                if (transformed != null)
+                    bytes = transformed;
+            }
+            loader.define(names.get(i).replace('/', '.'), bytes);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static class BenchLoader extends ClassLoader {
+        void define(String name, byte[] bytes) {
+            defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * @return peak resident set size in KB, or -1 if not known
+     */
+    private static long peakRss() throws IOException {
+        File status = new File("/proc/self/status");
+        if (!status.exists())
+            return -1;
+        BufferedReader reader = new BufferedReader(new FileReader(status));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmHWM:"))
+                    return Long.parseLong(line.substring(6).trim().split("\\s+")[0]);
+            }
+        } finally {
+            reader.close();
+        }
+        return -1;
+    }
+
+    /**
+     * Tracks bytes allocated by all threads, including those that have since exited, by polling
+     */
+    private static class AllocationSampler extends Thread {
+        private final com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        private final Map<Long, Long> lastSeen = new HashMap<Long, Long>();
+        private long exited = 0;
+
+        AllocationSampler() {
+            super("allocation-sampler");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                sample();
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        synchronized long total() {
+            return sample();
+        }
+
+        private synchronized long sample() {
+            long[] ids = bean.getAllThreadIds();
+            long[] bytes = bean.getThreadAllocatedBytes(ids);
+            Map<Long, Long> seen = new HashMap<Long, Long>();
+            long live = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (bytes[i] >= 0 && ids[i] != getId()) {
+                    seen.put(ids[i], bytes[i]);
+                    live += bytes[i];
+                }
+            }
+            for (Map.Entry<Long, Long> e : lastSeen.entrySet()) {
+                if (!seen.containsKey(e.getKey()))
+                    exited += e.getValue();
+            }
+            lastSeen.clear();
+            lastSeen.putAll(seen);
+            return exited + live;
+        }
+    }
+}
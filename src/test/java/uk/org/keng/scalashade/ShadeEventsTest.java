@@ -0,0 +1,54 @@
+package uk.org.keng.scalashade;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class ShadeEventsTest {
+
+    @Test
+    public void EntryEvents() throws IOException {
+        File out = File.createTempFile("shaded", ".jar");
+        out.deleteOnExit();
+        File dump = File.createTempFile("shade", ".jfr");
+        dump.deleteOnExit();
+
+        Recording recording = new Recording();
+        recording.enable("uk.org.keng.scalashade.Entry").withoutThreshold();
+        recording.enable("uk.org.keng.scalashade.Jar").withoutThreshold();
+        recording.start();
+        new JarShade(JarShadeTest.sampleJar).writeTo(out, RuleSet.of("org.apache", "shaded.org.apache"), false);
+        recording.stop();
+        recording.dump(dump.toPath());
+        recording.close();
+
+        Map<String, RecordedEvent> entries = new HashMap<String, RecordedEvent>();
+        int jars = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(dump.toPath())) {
+            if (event.getEventType().getName().equals("uk.org.keng.scalashade.Entry"))
+                entries.put(event.getString("name"), event);
+            else if (event.getEventType().getName().equals("uk.org.keng.scalashade.Jar"))
+                jars++;
+        }
+
+        assertEquals(1, jars);
+        assertEquals(3, entries.size());
+        RecordedEvent clazz = entries.get("StringType.class");
+        assertTrue(clazz.getBoolean("hasSignature"));
+        assertEquals(1, clazz.getInt("replacements"));
+        assertEquals(5580, clazz.getLong("uncompressedSize"));
+        assertFalse(entries.get("META-INF/MANIFEST.MF").getBoolean("hasSignature"));
+        assertTrue(clazz.getStackTrace() == null);
+    }
+}
@@ -0,0 +1,86 @@
+package uk.org.keng.scalashade;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SigIndexTest {
+
+    @Test
+    public void QueryNamespaces() throws IOException {
+        // A second jar holding the example class twice, once shaded, plus a class without a signature
+        byte[] clazz = JarShadeTest.readFile(new File("examples/StringType.class"));
+        Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+        contents.put("a/StringType.class", clazz);
+        contents.put("b/StringType.class", new ScalaShade().relocate("org.apache", "shaded.org.apache")
+                .shadeClass("StringType", clazz));
+        contents.put("c/Plain.class", JarShadeTest.readFile(new File("target/classes/uk/org/keng/scalashade/Nat.class")));
+        File jar = File.createTempFile("index", ".jar");
+        jar.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(jar);
+        out.write(JarShadeTest.writeJar(contents, false));
+        out.close();
+
+        File indexFile = File.createTempFile("index", ".idx");
+        indexFile.deleteOnExit();
+        SigIndex.Built built = SigIndex.build(Arrays.asList(JarShadeTest.sampleJar, jar), indexFile, 2, false);
+        assertEquals(3, built.classes);
+        assertEquals(0, built.skipped);
+
+        SigIndex index = new SigIndex(indexFile);
+        try {
+            assertEquals(2, index.jarCount());
+            assertEquals(3, index.classCount());
+
+            // Nested namespaces are included, ones that only share a prefix are not
+            Set<String> classes = new HashSet<String>();
+            for (SigIndex.Match match : index.query("org.apache")) {
+                assertTrue(match.namespace.equals("org.apache") || match.namespace.startsWith("org.apache."));
+                classes.add(match.jar + "!" + match.className);
+            }
+            assertEquals(new HashSet<String>(Arrays.asList(JarShadeTest.sampleJar.getPath() + "!StringType",
+                    jar.getPath() + "!a.StringType")), classes);
+            assertTrue(index.query("org.apach").isEmpty());
+
+            List<SigIndex.Match> exact = index.query("shaded.org.apache.spark.sql.types");
+            assertEquals(1, exact.size());
+            assertEquals("b.StringType", exact.get(0).className);
+            assertTrue(index.query("zzz").isEmpty());
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void SkipBadClass() throws IOException {
+        // A class cut short after its signature annotation is counted and skipped, the rest are still indexed
+        byte[] clazz = JarShadeTest.readFile(new File("examples/StringType.class"));
+        byte[] truncated = Arrays.copyOf(clazz, clazz.length - 16);
+        assertTrue(ScalaSigClass.mayHaveSignature(truncated, truncated.length));
+        Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+        contents.put("a/Bad.class", truncated);
+        contents.put("b/StringType.class", clazz);
+        File jar = File.createTempFile("index", ".jar");
+        jar.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(jar);
+        out.write(JarShadeTest.writeJar(contents, false));
+        out.close();
+
+        File indexFile = File.createTempFile("index", ".idx");
+        indexFile.deleteOnExit();
+        SigIndex.Built built = SigIndex.build(Arrays.asList(jar), indexFile, 1, false);
+        assertEquals(1, built.classes);
+        assertEquals(1, built.skipped);
+    }
+}
@@ -0,0 +1,83 @@
+package uk.org.keng.scalashade;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WatchShadeTest {
+
+    private static void awaitFile(Path file, boolean exists) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (Files.exists(file) != exists && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+    }
+
+    @Test
+    public void SyncMirrorsDirectory() throws IOException {
+        Path in = Files.createTempDirectory("watch-in");
+        Path out = Files.createTempDirectory("watch-out");
+        Files.createDirectories(in.resolve("pkg"));
+        byte[] clazz = JarShadeTest.readFile(new File("examples/StringType.class"));
+        Files.write(in.resolve("pkg/StringType.class"), clazz);
+        Files.write(in.resolve("pkg/resource.txt"), "text".getBytes("UTF-8"));
+
+        WatchShade watchShade = new WatchShade(in.toFile(), out.toFile(),
+                RuleSet.of("org.apache", "shaded.org.apache"), false);
+        assertEquals(2, watchShade.sync());
+        assertTrue(JarShadeTest.isShaded(Files.readAllBytes(out.resolve("pkg/StringType.class"))));
+        assertArrayEquals("text".getBytes("UTF-8"), Files.readAllBytes(out.resolve("pkg/resource.txt")));
+
+        // Nothing has changed so nothing to do
+        assertEquals(0, watchShade.sync());
+        assertTrue(Files.isRegularFile(out.resolve(WatchShade.MARKER)));
+
+        // Different rules leave every output stale whatever the timestamps
+        WatchShade changed = new WatchShade(in.toFile(), out.toFile(),
+                RuleSet.of("org.apache", "other.org.apache"), false);
+        assertEquals(2, changed.sync());
+        assertFalse(JarShadeTest.isShaded(Files.readAllBytes(out.resolve("pkg/StringType.class"))));
+        assertEquals(0, changed.sync());
+    }
+
+    @Test
+    public void WatchUpdatesChanges() throws Exception {
+        Path in = Files.createTempDirectory("watch-in");
+        Path out = Files.createTempDirectory("watch-out");
+        final WatchShade watchShade = new WatchShade(in.toFile(), out.toFile(),
+                RuleSet.of("org.apache", "shaded.org.apache"), false);
+        watchShade.setDebounce(5);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watchShade.run();
+            }
+        });
+        thread.start();
+        try {
+            // A directory created while watching is picked up along with the files in it
+            Thread.sleep(200);
+            Path pkg = Files.createDirectories(in.resolve("a/b"));
+            byte[] clazz = JarShadeTest.readFile(new File("examples/StringType.class"));
+            Files.write(pkg.resolve("StringType.class"), clazz);
+            Path shaded = out.resolve("a/b/StringType.class");
+            awaitFile(shaded, true);
+            assertTrue(JarShadeTest.isShaded(Files.readAllBytes(shaded)));
+
+            Files.delete(pkg.resolve("StringType.class"));
+            awaitFile(shaded, false);
+            assertFalse(Files.exists(shaded));
+        } finally {
+            watchShade.close();
+            thread.join(10000);
+        }
+        assertFalse(thread.isAlive());
+    }
+}